@@ -0,0 +1,81 @@
+package particlecollisionstest.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import particlecollisionstest.Broadphase;
+import particlecollisionstest.IntList;
+import particlecollisionstest.ParticleStore;
+import particlecollisionstest.QuadTree;
+import particlecollisionstest.Simulation;
+
+/*
+ * QuadTree operations over a whole scene, every benchmark call touches all particles once
+ * capacity is the leaf bucket size, compare getObjectsWithinBound across it for the query cost
+ */
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+@State (Scope.Thread)
+public class QuadTreeBenchmark {
+
+	@Param ({"1000", "10000", "100000", "1000000"})
+	public int count;
+
+	@Param ({"1", "4", "8", "16", "32"})
+	public int capacity;
+
+	private Simulation simulation;
+	private ParticleStore store;
+	private QuadTree tree;
+	private QuadTree.QuadTreeQuery query;
+	private IntList objects;
+	private float direction;
+
+	@Setup (Level.Trial)
+	public void setUp () {
+		simulation = Scenes.halton (count, Broadphase.Type.QUADTREE);
+		store = simulation.getStore ();
+		tree = newTree ();
+		query = new QuadTree.QuadTreeQuery ();
+		objects = new IntList ();
+		direction = 1;
+	}
+
+	private QuadTree newTree () {
+		QuadTree fresh = new QuadTree (store, simulation.getWidth (), simulation.getHeight (), capacity, QuadTree.DEFAULT_MAX_DEPTH);
+		for (int i = 0; i < store.size (); i++) {
+			fresh.insert (i);
+		}
+		return fresh;
+	}
+
+	@Benchmark
+	public QuadTree insert () {
+		return newTree ();
+	}
+
+	/*
+	 * Particles move one velocity step back and forth so the scene does not drift away
+	 */
+	@Benchmark
+	public void update () {
+		direction = -direction;
+		for (int i = 0; i < store.size (); i++) {
+			store.x[i] += direction * store.vx[i];
+			store.y[i] += direction * store.vy[i];
+			tree.update (i);
+		}
+	}
+
+	@Benchmark
+	public void getObjectsWithinBound (Blackhole bh) {
+		for (int i = 0; i < store.size (); i++) {
+			objects.clear ();
+			tree.getObjectsWithinBound (store.getQuery (i, query), objects);
+			bh.consume (objects.size ());
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package particlecollisionstest.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import particlecollisionstest.Broadphase;
+import particlecollisionstest.Simulation;
+
+/*
+ * Simulation.step with the store sorted along a Morton curve every reorderInterval steps (0 never)
+ * Run with -prof perfnorm for the L1 and LLC misses per step (needs Linux perf)
+ */
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+@State (Scope.Thread)
+public class ReorderBenchmark {
+
+	@Param ({"10000", "100000", "1000000"})
+	public int count;
+
+	@Param ({"QUADTREE", "UNIFORM_GRID", "SWEEP_AND_PRUNE"})
+	public Broadphase.Type broadphase;
+
+	@Param ({"0", "10", "100"})
+	public int reorderInterval;
+
+	private Simulation simulation;
+
+	@Setup (Level.Trial)
+	public void setUp () {
+		simulation = Scenes.halton (count, broadphase);
+		simulation.setReorderInterval (reorderInterval);
+	}
+
+	@TearDown (Level.Trial)
+	public void tearDown () {
+		simulation.shutdown ();
+	}
+
+	@Benchmark
+	public Simulation step () {
+		simulation.step ();
+		return simulation;
+	}
+}
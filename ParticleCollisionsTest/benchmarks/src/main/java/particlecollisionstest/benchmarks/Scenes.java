@@ -0,0 +1,25 @@
+package particlecollisionstest.benchmarks;
+
+import java.util.Random;
+import particlecollisionstest.Broadphase;
+import particlecollisionstest.SceneGenerator;
+import particlecollisionstest.Simulation;
+
+/*
+ * Benchmark scenes, the same Halton placement as TestFrame with a fixed seed
+ * The world grows with the particle count so density matches TestFrame (1000 particles on 1920 x 1200)
+ */
+public class Scenes {
+
+	public static final long SEED = 42;
+
+	private Scenes () {
+	}
+
+	public static Simulation halton (int count, Broadphase.Type type) {
+		double scale = Math.sqrt (count / 1000.0);
+		Simulation simulation = new Simulation ((float) (1920 * scale), (float) (1200 * scale), type);
+		SceneGenerator.populateHalton (simulation, count, new Random (SEED));
+		return simulation;
+	}
+}
@@ -0,0 +1,47 @@
+package particlecollisionstest.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import particlecollisionstest.Broadphase;
+import particlecollisionstest.Simulation;
+
+/*
+ * One full Simulation.step (integrate, broadphase, candidates, narrowphase, resolve)
+ * Run with -prof gc for the allocation rate per step
+ */
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+@State (Scope.Thread)
+public class StepBenchmark {
+
+	@Param ({"1000", "10000", "100000", "1000000"})
+	public int count;
+
+	@Param ({"QUADTREE", "UNIFORM_GRID", "SWEEP_AND_PRUNE"})
+	public Broadphase.Type broadphase;
+
+	@Param ({"1"})
+	public int threads;
+
+	private Simulation simulation;
+
+	@Setup (Level.Trial)
+	public void setUp () {
+		simulation = Scenes.halton (count, broadphase);
+		simulation.setThreadCount (threads);
+	}
+
+	@TearDown (Level.Trial)
+	public void tearDown () {
+		simulation.shutdown ();
+	}
+
+	@Benchmark
+	public Simulation step () {
+		simulation.step ();
+		return simulation;
+	}
+}
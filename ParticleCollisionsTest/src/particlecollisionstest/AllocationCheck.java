@@ -0,0 +1,84 @@
+package particlecollisionstest;
+
+/*
+ * Fails with exit code 1 when stepping allocates once the buffers have grown to the scene
+ * Runs DISCRETE mode on every broadphase and the other collision modes on the QuadTree, on the calling
+ * thread, and counts the bytes that thread allocates over rounds of steps. The scene keeps changing
+ * and a buffer may still have to grow for a step far into the run, so after the warmup the rounds are
+ * played once unmeasured, the particles put back and the same rounds played again. By then every buffer
+ * has seen what those steps need, and each of ROUNDS rounds has to stay within JIT_SLACK_BYTES. That
+ * slack is for the JVM itself, a deoptimization now and then allocates a few strings on the stepping
+ * thread. It is less than one object per step of a default round, so a step that allocates still fails.
+ * Usage: AllocationCheck [particles] [steps per round]
+ */
+public class AllocationCheck {
+
+	private static final int WARMUP_STEPS = 300;
+	private static final int ROUNDS = 5;
+	private static final long JIT_SLACK_BYTES = 1024;
+
+	public static void main (String[] args) {
+		int count = args.length > 0 ? Integer.parseInt (args[0]) : 2000;
+		int steps = args.length > 1 ? Integer.parseInt (args[1]) : 200;
+		if (HeadlessRunner.allocatedBytes () < 0) {
+			System.out.println ("This JVM can not count allocated bytes");
+			System.exit (1);
+		}
+
+		boolean passed = true;
+		for (Broadphase.Type type : Broadphase.Type.values ()) {
+			passed &= check (count, steps, type, Simulation.CollisionMode.DISCRETE);
+		}
+		for (Simulation.CollisionMode mode : Simulation.CollisionMode.values ()) {
+			if (mode != Simulation.CollisionMode.DISCRETE) {
+				passed &= check (count, steps, Broadphase.Type.QUADTREE, mode);
+			}
+		}
+
+		System.out.println (passed ? "No allocation in any step" : "Steps allocate");
+		System.exit (passed ? 0 : 1);
+	}
+
+	private static boolean check (int count, int steps, Broadphase.Type type, Simulation.CollisionMode mode) {
+		Simulation simulation = new Simulation (1920, 1200, type);
+		simulation.setCollisionMode (mode);
+		SceneGenerator.populateHalton (simulation, count, new SeedableRandom (7));
+		simulation.step (WARMUP_STEPS);
+
+		ParticleStore store = simulation.getStore ();
+		ParticleStore saved = new ParticleStore (store.capacity ());
+		copy (store, saved);
+		long stepCount = simulation.getStepCount ();
+		simulation.step (ROUNDS * steps);
+		copy (saved, store);
+		simulation.reload (stepCount);
+
+		long bytes = 0;
+		int failed = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = HeadlessRunner.allocatedBytes ();
+			simulation.step (steps);
+			long allocated = HeadlessRunner.allocatedBytes () - start;
+			if (allocated > JIT_SLACK_BYTES) {
+				bytes += allocated;
+				failed++;
+			}
+		}
+		simulation.shutdown ();
+
+		System.out.println (type + ", " + mode + ": " + (failed == 0 ? "ok" : bytes + " bytes in " + failed + " of " + ROUNDS + " rounds of " + steps + " steps"));
+		return failed == 0;
+	}
+
+	private static void copy (ParticleStore from, ParticleStore to) {
+		int n = from.size ();
+		to.setSize (n);
+		System.arraycopy (from.x, 0, to.x, 0, n);
+		System.arraycopy (from.y, 0, to.y, 0, n);
+		System.arraycopy (from.vx, 0, to.vx, 0, n);
+		System.arraycopy (from.vy, 0, to.vy, 0, n);
+		System.arraycopy (from.r, 0, to.r, 0, n);
+		System.arraycopy (from.mass, 0, to.mass, 0, n);
+		System.arraycopy (from.species, 0, to.species, 0, n);
+	}
+}
@@ -0,0 +1,53 @@
+package particlecollisionstest;
+
+/*
+ * Collision culling structure over the particle ids of a ParticleStore
+ * Implementations may be incremental (update does the work) or rebuilt once per step (rebuild does the work)
+ */
+public interface Broadphase {
+
+	public enum Type {
+		QUADTREE,
+		UNIFORM_GRID,
+		SWEEP_AND_PRUNE
+	}
+
+	/*
+	 * Registers a newly added particle
+	 */
+	public void insert (int id);
+
+	/*
+	 * Called whenever a particle has moved
+	 */
+	public void update (int id);
+
+	/*
+	 * Called once at the start of every step
+	 */
+	public void rebuild ();
+
+	/*
+	 * Appends every id whose bounds may intersect the query, may include false positives
+	 * Must be safe to call from several threads at once between a rebuild and the next update: the
+	 * multi-threaded StepPipeline queries from every stripe in parallel and relies on getting the same
+	 * ids as a single thread. Scratch state belongs in the query object, which every thread owns.
+	 */
+	public void query (QuadTree.QuadTreeQuery query, IntList out);
+
+	/*
+	 * Appends every pair of ids whose swept bounding boxes overlap as two consecutive entries (lower id first)
+	 * Each pair is reported once
+	 */
+	public void findPairs (IntList pairs);
+
+	/*
+	 * The store was permuted, the particle that was oldId is now newIds[oldId]
+	 */
+	public void reorder (int[] newIds);
+
+	/*
+	 * The store was filled directly, forget everything and take every particle in it in bulk
+	 */
+	public void reload ();
+}
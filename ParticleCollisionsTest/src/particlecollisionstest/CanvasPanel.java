@@ -1,230 +1,154 @@
 package particlecollisionstest;
 
 import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.geom.Ellipse2D;
 import java.awt.image.BufferStrategy;
 import java.text.DecimalFormat;
-import java.util.*;
 import javax.swing.JPanel;
+import javax.swing.Timer;
 
+/*
+ * Shows an Engine stepped on its own thread
+ * The simulation thread steps as fast as it can (or at the step rate, if one is set) and publishes
+ * position snapshots through a SnapshotBuffer, a Swing Timer repaints from the newest snapshot at the
+ * frame rate. Painting never reads the ParticleStore the simulation thread is writing.
+ */
 public class CanvasPanel extends JPanel implements Runnable {
 	
-	private boolean debugEnergy = false;
-	private boolean runSimulation;
-	private float width;
-	private float height;
+	private static final long serialVersionUID = 1L;
+
+	private volatile boolean runSimulation;
 	private double maxFps;
 	private double currentFps;
+	private volatile double stepsPerSecond;
+	private double stepRate;
 	private BufferStrategy bs;
 	private Thread simLoop;
-	private ArrayList<Particle> particles;
-	private QuadTree qTree;
+	private Timer renderTimer;
+	private Engine engine;
+	private SnapshotBuffer snapshots;
+	private long lastPaint;
+	private RasterRenderer raster;
+	private Ellipse2D.Float ellipse;
 	
 	public CanvasPanel (int width, int height, BufferStrategy bs, double fps) {
-		this.width = (float) width;
-		this.height = (float) height;
-		this.setPreferredSize (new Dimension (width, height));
+		this (new Simulation (width, height), bs, fps);
+	}
+	
+	public CanvasPanel (Engine engine, BufferStrategy bs, double fps) {
+		this.engine = engine;
+		this.setPreferredSize (new Dimension ((int) engine.getWidth (), (int) engine.getHeight ()));
 		this.bs = bs;
 		this.maxFps = fps;
+		this.stepRate = 0;
+		this.snapshots = new SnapshotBuffer ();
+		this.ellipse = new Ellipse2D.Float ();
 		
 		simLoop = new Thread (this);
-		qTree = new QuadTree (this.width, this.height);
-		particles = new ArrayList<> ();
+		renderTimer = new Timer ((int) Math.max (1, Math.round (1000.0 / maxFps)), new ActionListener () {
+			@Override
+			public void actionPerformed (ActionEvent e) {
+				repaint ();
+			}
+		});
+	}
+	
+	/*
+	 * Caps the simulation at this many steps per second, 0 runs it flat out
+	 */
+	public void setStepRate (double stepRate) {
+		this.stepRate = stepRate;
+	}
+	
+	/*
+	 * Draws through a RasterRenderer instead of an oval per particle, null goes back to ovals
+	 * The renderer takes the colours of the panel.
+	 */
+	public void setRasterRenderer (RasterRenderer raster) {
+		this.raster = raster;
+		if (raster != null) {
+			raster.setColors (getBackground ().getRGB (), getForeground ().getRGB ());
+		}
 	}
 	
 	public void startSimulation () {
 		runSimulation = true;
+		//Particles added before the start are shown straight away
+		snapshots.publish (engine.getStore (), engine.getStepCount ());
 		simLoop.start ();
+		renderTimer.start ();
 	}
 	
+	/*
+	 * Returns once the simulation thread has finished its last step
+	 */
 	public void stopSimulation () {
 		runSimulation = false;
+		renderTimer.stop ();
+		try {
+			if (simLoop.isAlive () && simLoop != Thread.currentThread ()) {
+				simLoop.join ();
+			}
+		}
+		catch (InterruptedException ex) {
+			System.out.println (ex.getMessage ());
+		}
+		if (raster != null) {
+			//Later repaints still work, on the EDT alone
+			raster.shutdown ();
+		}
 	}
 	
 	@Override
 	public void run () {
-		long startTime, endTime, timeTaken;
-		long maxFrameTime = Math.round (1000.0 / maxFps);
-		System.out.println ("Max fps " + (1000.0 / maxFrameTime));
+		System.out.println ("Max fps " + maxFps);
+		long stepTime = stepRate > 0 ? Math.round (1e9 / stepRate) : 0;
+		long next = System.nanoTime ();
+		long windowStart = next, windowSteps = 0;
 		
-		endTime = System.currentTimeMillis ();
 		while (runSimulation) {
-			startTime = endTime;
-			updateParticles ();
-			repaint ();
-			endTime = System.currentTimeMillis ();
-			timeTaken = endTime - startTime;
+			engine.step ();
+			snapshots.publish (engine.getStore (), engine.getStepCount ());
 			
-			if (timeTaken < maxFrameTime) {
-				try {
-					simLoop.sleep (maxFrameTime - timeTaken);
-				}
-				catch (Exception ex) {
-					System.out.println (ex.getMessage ());
-				}
-				
+			long now = System.nanoTime ();
+			windowSteps++;
+			if (now - windowStart >= 500000000L) {
+				stepsPerSecond = windowSteps * 1e9 / (now - windowStart);
+				windowStart = now;
+				windowSteps = 0;
 			}
 			
-			endTime = System.currentTimeMillis ();
-			timeTaken = endTime - startTime;
-			
-			if (timeTaken > 0) {
-				currentFps = 1000.0 / (double) timeTaken;
+			if (stepTime > 0) {
+				next += stepTime;
+				long sleepTime = next - now;
+				if (sleepTime > 0) {
+					try {
+						Thread.sleep (sleepTime / 1000000, (int) (sleepTime % 1000000));
+					}
+					catch (InterruptedException ex) {
+						System.out.println (ex.getMessage ());
+					}
+				}
+				else {
+					//Fell behind, do not try to catch up
+					next = now;
+				}
 			}
 		}
 	}
 	
-	public void addParticle (Particle p) {
-		particles.add (p);
-		qTree.insert (p);
-	}
-	
-	private float CalculateSystemEnergy () {
-		float ke = 0;
-		for (Particle tmp : particles) {
-			float m = tmp.getR () * tmp.getR ();
-			ke += 0.5 * m * tmp.getVelocity ().getMagnitude () * tmp.getVelocity ().getMagnitude ();
-		}
-		return ke;
-	}
-	
-	private void logEnergyDebug (String msg) {
-		if (debugEnergy) {
-			System.out.println ("[Energy]" + msg + " = " + CalculateSystemEnergy ());
-		}
-	}
-	
-	private void updateNextPosition (Particle p) {
-		p.setPosition (p.getNewX (), p.getNewY ());
+	public int addParticle (float x, float y, float dx, float dy, float r) {
+		return engine.addParticle (x, y, dx, dy, r);
 	}
 	
-	private void reversePosition (Particle p) {
-		p.setPosition (p.getX () - p.getVelocity ().dx, p.getY () - p.getVelocity ().dy);
-	}
-	
-	private void updateBoundryCheck (Particle p) {
-		if (p.getX () - p.getR () < 0 || p.getX () + p.getR () > width) {
-			reversePosition (p);
-			p.setVelocity (-p.getVelocity ().dx, p.getVelocity ().dy);
-			updateNextPosition (p);
-		}
-		
-		if (p.getY () - p.getR () < 0 || p.getY () + p.getR () > height) {
-			reversePosition (p);
-			p.setVelocity (p.getVelocity ().dx, -p.getVelocity ().dy);
-			updateNextPosition (p);
-		}
-	}
-	
-	private void updateCollisionCheck (Particle p) {
-		//Collision culling here
-		ArrayList<Particle> possibleColliders = qTree.getObjectsWithinBound (p);
-		//System.out.println ("Reduced collision checks to " +  ((double) possibleColliders.size () / (double) (particles.size () - 1) * 100) + "%");
-
-		//Collision
-		for (Particle o : possibleColliders) {
-			if (p != o) {
-				if (p.collidesWith (o)) {
-					reversePosition (p);
-					reversePosition (o);
-					
-					float pMass = p.getR () * p.getR ();
-					float oMass = o.getR () * o.getR ();
-					float po_dx = p.getX () - o.getX ();
-					float po_dy = p.getY () - o.getY ();
-					float sinPhi, cosPhi, distance;
-
-					//Get trigo angle shifts needed for collision to be 1D
-					distance = (float) Math.sqrt (po_dx * po_dx + po_dy * po_dy);
-					sinPhi = po_dy / distance;
-					cosPhi = po_dx / distance;
-					//System.out.println ("phi = " + phi);
-
-					//Transform velocities to rotated coordinate system
-					Vector2D pVelRefInit = new Vector2D (
-						(p.getVelocity ().dx * cosPhi + p.getVelocity ().dy * sinPhi),
-						(p.getVelocity ().dx * -sinPhi + p.getVelocity ().dy * cosPhi));
-					
-					Vector2D oVelRefInit = new Vector2D (
-						(o.getVelocity ().dx * cosPhi + o.getVelocity ().dy * sinPhi),
-						(o.getVelocity ().dx * -sinPhi + o.getVelocity ().dy * cosPhi));
-
-					//Calculate new velocities based on 1D collision
-					Vector2D pVelRefFinal = new Vector2D (
-						(pVelRefInit.dx * (pMass - oMass) + 2 * oMass * oVelRefInit.dx) / (pMass + oMass),
-						pVelRefInit.dy);
-					
-					Vector2D oVelRefFinal = new Vector2D (
-						(oVelRefInit.dx * (oMass - pMass) + 2 * pMass * pVelRefInit.dx) / (pMass + oMass),
-						oVelRefInit.dy);
-
-					//Will not exit penetration in 1 update, push apart with velocity bias which is valid for 2 updates only
-					/*float scale;
-					float minDistance = p.getR () + o.getR ();
-					float horizontalIncrease = (pVelRefFinal.dx < 0 ? -pVelRefFinal.dx : pVelRefFinal.dx)
-											   + (oVelRefFinal.dx < 0 ? -oVelRefFinal.dx : oVelRefFinal.dx);
-					
-					if (distance + horizontalIncrease < minDistance) {
-						scale = 1 - (minDistance - distance) / horizontalIncrease;
-						Vector2D pBias = new Vector2D (pVelRefFinal.dx * scale, 0);
-						Vector2D oBias = new Vector2D (oVelRefFinal.dx * scale, 0);
-						p.setBias (pBias);
-						o.setBias (oBias);
-						
-						//Apply biases
-						pVelRefFinal.add (pBias);
-						oVelRefFinal.add (oBias);
-					}					
-					else {
-						//Remove biases
-						if (p.hasBias ()) {
-							pVelRefFinal.subtract (p.getBias ());
-						}
-						if (o.hasBias ()) {
-							oVelRefFinal.subtract (o.getBias ());
-						}
-					}*/
-
-
-					//Transform velocities back to original system
-					Vector2D pVelFinal = new Vector2D (
-						(pVelRefFinal.dx * cosPhi - pVelRefFinal.dy * sinPhi),
-						(pVelRefFinal.dx * sinPhi + pVelRefFinal.dy * cosPhi));
-					
-					Vector2D oVelFinal = new Vector2D (
-						(oVelRefFinal.dx * cosPhi - oVelRefFinal.dy * sinPhi),
-						(oVelRefFinal.dx * sinPhi + oVelRefFinal.dy * cosPhi));
-					
-					p.setVelocity (pVelFinal);
-					o.setVelocity (oVelFinal);
-					
-					updateNextPosition (p);
-					updateNextPosition (o);
-					qTree.update (o);
-
-					if (p.collidesWith (o)) {
-					 System.out.println ("oh no");
-					 }
-					
-				}
-			}
-		}
-	}
-	
-	private void updateParticles () {
-		for (Particle p : particles) {
-			updateNextPosition (p);
-			updateBoundryCheck (p);
-			qTree.update (p);
-			updateCollisionCheck (p);
-			//Done
-			updateNextPosition (p);
-			//System.out.println ("Objects in tree: " + qTree.treeHead.getAllObjectsUnderNode ().size () + " / " + particles.size ());
-			//System.out.println (qTree);
-		}
+	public Engine getEngine () {
+		return engine;
 	}
 	
 	private void draw () {
+		long renderStart = engine.getMetrics ().start ();
 		Graphics2D g2 = (Graphics2D) bs.getDrawGraphics ();
 		g2.clearRect (0, 0, getWidth (), getHeight ());
 
@@ -234,11 +158,16 @@ public class CanvasPanel extends JPanel implements Runnable {
 		 }*/
 
 		//Random rand = new Random ();
-		if (particles.size () > 0) {
-			for (int i = 0; i < particles.size (); i++) {
-				Particle p = particles.get (i);
+		SnapshotBuffer.Snapshot snapshot = snapshots.take ();
+		if (raster != null) {
+			g2.drawImage (raster.render (snapshot), 0, 0, null);
+		}
+		else if (snapshot.size > 0) {
+			for (int i = 0; i < snapshot.size; i++) {
+				float x = snapshot.x[i], y = snapshot.y[i], r = snapshot.r[i];
 				//g2.setColor (new Color (rand.nextFloat (), rand.nextFloat (), rand.nextFloat ()));
-				g2.fill (new Ellipse2D.Float (p.getX () - p.getR (), p.getY () - p.getR (), p.getR () * 2, p.getR () * 2));
+				ellipse.setFrame (x - r, y - r, r * 2, r * 2);
+				g2.fill (ellipse);
 			}
 		}
 		
@@ -247,10 +176,12 @@ public class CanvasPanel extends JPanel implements Runnable {
 		
 		g2.dispose ();
 		bs.show ();
+		engine.getMetrics ().lap (StepMetrics.Stage.RENDER, renderStart);
 	}
 	
 	@Override
 	public void paintComponent (Graphics g) {
+		long renderStart = engine.getMetrics ().start ();
 		super.paintComponent (g);
 		Graphics2D g2 = (Graphics2D) g;
 		//g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
@@ -260,23 +191,33 @@ public class CanvasPanel extends JPanel implements Runnable {
 		 g2.draw ((Shape) lines.get (i));
 		 }*/
 		
-		Random rand = new Random ();
-		if (particles.size () > 0) {
-			for (int i = 0; i < particles.size (); i++) {
+		SnapshotBuffer.Snapshot snapshot = snapshots.take ();
+		if (raster != null) {
+			g2.drawImage (raster.render (snapshot), 0, 0, null);
+		}
+		else if (snapshot.size > 0) {
+			for (int i = 0; i < snapshot.size; i++) {
 				
-				Particle p = particles.get (i);
-				//QuadTree.QuadTreeQuery query = p.getQuery ();
+				float px = snapshot.x[i], py = snapshot.y[i], pr = snapshot.r[i];
+				//QuadTree.QuadTreeQuery query = store.getQuery (i, new QuadTree.QuadTreeQuery ());
 				//g2.drawRect ((int) query.x, (int) query.y, (int) query.w, (int) query.h);
 				//g2.setColor (new Color (rand.nextFloat (), rand.nextFloat (), rand.nextFloat ()));
 				//g2.fill (new Ellipse2D.Float (p.getX () - p.getR (), p.getY () - p.getR (), p.getR () * 2, p.getR () * 2));
-				int x = (int) (p.getX () - p.getR () + 0.5f), y = (int) (p.getY () - p.getR () + 0.5f);
-				int l = (int) (p.getR () * 2 + 0.5f);
+				int x = (int) (px - pr + 0.5f), y = (int) (py - pr + 0.5f);
+				int l = (int) (pr * 2 + 0.5f);
 				g2.drawOval (x, y, l, l);
 				g2.fillOval (x, y, l, l);
 			}
 		}
 		
+		long now = System.nanoTime ();
+		if (lastPaint > 0 && now > lastPaint) {
+			currentFps = 1e9 / (now - lastPaint);
+		}
+		lastPaint = now;
+		
 		DecimalFormat df = new DecimalFormat ("0.##");
-		g2.drawString ("Fps: " + df.format (currentFps), 10, 10);
+		g2.drawString ("Fps: " + df.format (currentFps) + "  Steps/s: " + df.format (stepsPerSecond), 10, 10);
+		engine.getMetrics ().lap (StepMetrics.Stage.RENDER, renderStart);
 	}
 }
@@ -0,0 +1,210 @@
+package particlecollisionstest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/*
+ * Binary save and restore of a whole engine, read and written through memory mapped FileChannels
+ * Layout, little endian:
+ *   0  int    magic "PCHK"
+ *   4  int    version
+ *   8  float  world width
+ *   12 float  world height
+ *   16 float  time step
+ *   20 int    particle count n
+ *   24 long   step count
+ *   32 int    flags (HAS_RANDOM)
+ *   40 long   SeedableRandom state
+ *   64        columns of n values each: x, y, vx, vy, r (float) then species (int)
+ * Mass is not stored, it always follows from r.
+ *
+ * Every column is copied with one bulk get/put on a mapped buffer, so the cost is a memcpy per column.
+ * A save goes to a temporary file that is then renamed over the target, a crash while saving never
+ * leaves a torn checkpoint behind.
+ */
+public class Checkpoint {
+
+	public static final int MAGIC = 0x5043484b;
+	public static final int VERSION = 1;
+	public static final int HAS_RANDOM = 1;
+	private static final int HEADER_BYTES = 64;
+	private static final int COLUMNS = 6;
+
+	private File file;
+	private float width;
+	private float height;
+	private float timeStep;
+	private int count;
+	private long stepCount;
+	private int flags;
+	private long randomState;
+
+	private Checkpoint (File file) {
+		this.file = file;
+	}
+
+	/*
+	 * Writes the state of the engine at the end of its last step, random may be null
+	 */
+	public static void save (Engine engine, SeedableRandom random, File file) throws IOException {
+		ParticleStore store = engine.getStore ();
+		int n = store.size ();
+		File temporary = new File (file.getPath () + ".tmp");
+
+		try (RandomAccessFile output = new RandomAccessFile (temporary, "rw"); FileChannel channel = output.getChannel ()) {
+			output.setLength (HEADER_BYTES + (long) n * 4 * COLUMNS);
+
+			ByteBuffer header = channel.map (FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES).order (ByteOrder.LITTLE_ENDIAN);
+			header.putInt (0, MAGIC);
+			header.putInt (4, VERSION);
+			header.putFloat (8, engine.getWidth ());
+			header.putFloat (12, engine.getHeight ());
+			header.putFloat (16, engine.getTimeStep ());
+			header.putInt (20, n);
+			header.putLong (24, engine.getStepCount ());
+			header.putInt (32, random != null ? HAS_RANDOM : 0);
+			header.putLong (40, random != null ? random.getState () : 0);
+
+			long offset = HEADER_BYTES;
+			offset = put (channel, offset, store.x, n);
+			offset = put (channel, offset, store.y, n);
+			offset = put (channel, offset, store.vx, n);
+			offset = put (channel, offset, store.vy, n);
+			offset = put (channel, offset, store.r, n);
+			put (channel, offset, store.species, n);
+		}
+
+		Files.move (temporary.toPath (), file.toPath (), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * Reads and checks the header only, restore loads the particles
+	 */
+	public static Checkpoint read (File file) throws IOException {
+		Checkpoint checkpoint = new Checkpoint (file);
+
+		try (RandomAccessFile input = new RandomAccessFile (file, "r"); FileChannel channel = input.getChannel ()) {
+			if (channel.size () < HEADER_BYTES) {
+				throw new IOException ("Not a checkpoint: " + file);
+			}
+			ByteBuffer header = channel.map (FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order (ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt (0) != MAGIC) {
+				throw new IOException ("Not a checkpoint: " + file);
+			}
+			if (header.getInt (4) != VERSION) {
+				throw new IOException ("Unsupported checkpoint version " + header.getInt (4) + ": " + file);
+			}
+
+			checkpoint.width = header.getFloat (8);
+			checkpoint.height = header.getFloat (12);
+			checkpoint.timeStep = header.getFloat (16);
+			checkpoint.count = header.getInt (20);
+			checkpoint.stepCount = header.getLong (24);
+			checkpoint.flags = header.getInt (32);
+			checkpoint.randomState = header.getLong (40);
+
+			if (checkpoint.count < 0 || channel.size () < HEADER_BYTES + (long) checkpoint.count * 4 * COLUMNS) {
+				throw new IOException ("Truncated checkpoint: " + file);
+			}
+		}
+		return checkpoint;
+	}
+
+	/*
+	 * Loads every particle into an empty engine of the same world size, then lets it rebuild its
+	 * broadphase in bulk. random, if given, continues where the saved one was.
+	 */
+	public void restore (Engine engine, SeedableRandom random) throws IOException {
+		if (engine.getWidth () != width || engine.getHeight () != height) {
+			throw new IOException ("Checkpoint world is " + width + " x " + height + ", not " + engine.getWidth () + " x " + engine.getHeight ());
+		}
+		ParticleStore store = engine.getStore ();
+		if (store.size () != 0) {
+			throw new IllegalStateException ("Checkpoints can only be restored into an empty engine");
+		}
+
+		int n = count;
+		store.setSize (n);
+		try (RandomAccessFile input = new RandomAccessFile (file, "r"); FileChannel channel = input.getChannel ()) {
+			long offset = HEADER_BYTES;
+			offset = get (channel, offset, store.x, n);
+			offset = get (channel, offset, store.y, n);
+			offset = get (channel, offset, store.vx, n);
+			offset = get (channel, offset, store.vy, n);
+			offset = get (channel, offset, store.r, n);
+			get (channel, offset, store.species, n);
+		}
+
+		float[] r = store.r, mass = store.mass;
+		for (int i = 0; i < n; i++) {
+			mass[i] = r[i] * r[i];
+		}
+
+		engine.setTimeStep (timeStep);
+		engine.reload (stepCount);
+		if (random != null && (flags & HAS_RANDOM) != 0) {
+			random.setState (randomState);
+		}
+	}
+
+	public float getWidth () {
+		return width;
+	}
+
+	public float getHeight () {
+		return height;
+	}
+
+	public float getTimeStep () {
+		return timeStep;
+	}
+
+	public int getCount () {
+		return count;
+	}
+
+	public long getStepCount () {
+		return stepCount;
+	}
+
+	private static MappedByteBuffer map (FileChannel channel, FileChannel.MapMode mode, long offset, int n) throws IOException {
+		MappedByteBuffer buffer = channel.map (mode, offset, (long) n * 4);
+		buffer.order (ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	private static long put (FileChannel channel, long offset, float[] column, int n) throws IOException {
+		if (n > 0) {
+			map (channel, FileChannel.MapMode.READ_WRITE, offset, n).asFloatBuffer ().put (column, 0, n);
+		}
+		return offset + (long) n * 4;
+	}
+
+	private static long put (FileChannel channel, long offset, int[] column, int n) throws IOException {
+		if (n > 0) {
+			map (channel, FileChannel.MapMode.READ_WRITE, offset, n).asIntBuffer ().put (column, 0, n);
+		}
+		return offset + (long) n * 4;
+	}
+
+	private static long get (FileChannel channel, long offset, float[] column, int n) throws IOException {
+		if (n > 0) {
+			map (channel, FileChannel.MapMode.READ_ONLY, offset, n).asFloatBuffer ().get (column, 0, n);
+		}
+		return offset + (long) n * 4;
+	}
+
+	private static long get (FileChannel channel, long offset, int[] column, int n) throws IOException {
+		if (n > 0) {
+			map (channel, FileChannel.MapMode.READ_ONLY, offset, n).asIntBuffer ().get (column, 0, n);
+		}
+		return offset + (long) n * 4;
+	}
+}
@@ -0,0 +1,289 @@
+package particlecollisionstest;
+
+/*
+ * Wall bounces and the elastic particle-particle response, working in place on a ParticleStore
+ * Stateless apart from the world bounds so it can be shared by any stepping strategy, except when it
+ * records velocity changes for a ConservationTracker: then every thread needs its own copy ().
+ */
+public class CollisionResponse {
+
+	private ParticleStore store;
+	private float width;
+	private float height;
+	private ConservationTracker.Totals delta;
+
+	public CollisionResponse (ParticleStore store, float width, float height) {
+		this.store = store;
+		this.width = width;
+		this.height = height;
+	}
+
+	/*
+	 * Same world, without a delta
+	 */
+	public CollisionResponse copy () {
+		return new CollisionResponse (store, width, height);
+	}
+
+	/*
+	 * Where velocity changes are recorded, null records nothing
+	 */
+	public void setDelta (ConservationTracker.Totals delta) {
+		this.delta = delta;
+	}
+
+	public ConservationTracker.Totals getDelta () {
+		return delta;
+	}
+
+	public void updateNextPosition (int p) {
+		float dt = store.getTimeStep ();
+		store.x[p] += store.vx[p] * dt;
+		store.y[p] += store.vy[p] * dt;
+	}
+
+	public void reversePosition (int p) {
+		float dt = store.getTimeStep ();
+		store.x[p] -= store.vx[p] * dt;
+		store.y[p] -= store.vy[p] * dt;
+	}
+
+	/*
+	 * Moves a particle along its velocity for part of a step
+	 */
+	public void advance (int p, float t) {
+		store.x[p] += store.vx[p] * t;
+		store.y[p] += store.vy[p] * t;
+	}
+
+	public boolean collides (int p, int o) {
+		float deltaX = store.x[p] - store.x[o];
+		float deltaY = store.y[p] - store.y[o];
+		float minDist = store.r[p] + store.r[o];
+
+		return deltaX * deltaX + deltaY * deltaY <= minDist * minDist;
+	}
+
+	public void updateBoundryCheck (int p) {
+		float x = store.x[p], y = store.y[p], r = store.r[p];
+
+		if (x - r < 0 || x + r > width) {
+			reversePosition (p);
+			reflectX (p);
+			updateNextPosition (p);
+		}
+
+		y = store.y[p];
+		if (y - r < 0 || y + r > height) {
+			reversePosition (p);
+			reflectY (p);
+			updateNextPosition (p);
+		}
+	}
+
+	/*
+	 * Same bounce for a particle that just moved for t instead of a whole step
+	 */
+	public void updateBoundryCheck (int p, float t) {
+		float x = store.x[p], y = store.y[p], r = store.r[p];
+
+		if (x - r < 0 || x + r > width) {
+			advance (p, -t);
+			reflectX (p);
+			advance (p, t);
+		}
+
+		y = store.y[p];
+		if (y - r < 0 || y + r > height) {
+			advance (p, -t);
+			reflectY (p);
+			advance (p, t);
+		}
+	}
+
+	public void reflectX (int p) {
+		float vx = store.vx[p];
+		store.vx[p] = -vx;
+		if (delta != null) {
+			delta.changed (p, vx, store.vy[p]);
+		}
+	}
+
+	public void reflectY (int p) {
+		float vy = store.vy[p];
+		store.vy[p] = -vy;
+		if (delta != null) {
+			delta.changed (p, store.vx[p], vy);
+		}
+	}
+
+	/*
+	 * Time until two discs touch, given the offset of o from p and the velocity of o relative to p
+	 * 0 if they already overlap and are approaching, infinity if they never touch
+	 */
+	public double timeOfImpact (double dx, double dy, double dvx, double dvy, double minDist) {
+		double b = dx * dvx + dy * dvy;
+		if (b >= 0) {
+			//Separating or at rest relative to each other
+			return Double.POSITIVE_INFINITY;
+		}
+
+		double c = dx * dx + dy * dy - minDist * minDist;
+		if (c <= 0) {
+			return 0;
+		}
+
+		double a = dvx * dvx + dvy * dvy;
+		double discriminant = b * b - a * c;
+		if (discriminant < 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		//Smaller root, written to stay accurate when the discs barely miss
+		return c / (-b + Math.sqrt (discriminant));
+	}
+
+	/*
+	 * Time until a disc at position pos with radius r moving at v reaches either wall of [0, extent]
+	 * 0 if it is already past the wall it is moving towards
+	 */
+	public double timeToWall (float pos, float v, float r, float extent) {
+		if (v > 0) {
+			return Math.max (0, (extent - r - pos) / (double) v);
+		}
+		else if (v < 0) {
+			return Math.max (0, (r - pos) / (double) v);
+		}
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/*
+	 * Elastic collision between two touching particles
+	 * Both are moved back one step, given their new velocities and moved forward again
+	 * Returns true if they still overlap afterwards ("oh no")
+	 */
+	public boolean resolve (int p, int o) {
+		reversePosition (p);
+		reversePosition (o);
+
+		exchangeVelocities (p, o);
+
+		updateNextPosition (p);
+		updateNextPosition (o);
+
+		return collides (p, o);
+	}
+
+	/*
+	 * Zero velocity, for a particle put to sleep
+	 */
+	public void stop (int p) {
+		float vx = store.vx[p], vy = store.vy[p];
+		store.vx[p] = 0;
+		store.vy[p] = 0;
+		if (delta != null) {
+			delta.changed (p, vx, vy);
+		}
+	}
+
+	/*
+	 * Pushes p and o apart along the unit normal (nx, ny) from p to o by impulse (negative pulls them together)
+	 * A massless particle (r = 0) has no inverse mass and keeps its velocity
+	 */
+	public void applyImpulse (int p, int o, float nx, float ny, float impulse) {
+		float[] vx = store.vx, vy = store.vy;
+		float pOldVx = vx[p], pOldVy = vy[p], oOldVx = vx[o], oOldVy = vy[o];
+		float pMass = store.mass[p], oMass = store.mass[o];
+		float pShare = pMass > 0 ? impulse / pMass : 0, oShare = oMass > 0 ? impulse / oMass : 0;
+
+		vx[p] -= nx * pShare;
+		vy[p] -= ny * pShare;
+		vx[o] += nx * oShare;
+		vy[o] += ny * oShare;
+
+		if (delta != null) {
+			delta.changed (p, pOldVx, pOldVy);
+			delta.changed (o, oOldVx, oOldVy);
+		}
+	}
+
+	/*
+	 * New velocities for two touching particles at their current positions, positions are left alone
+	 * Two particles at the same position exchange along x, there is no direction between them
+	 */
+	public void exchangeVelocities (int p, int o) {
+		float[] vx = store.vx, vy = store.vy;
+
+		float pMass = store.mass[p];
+		float oMass = store.mass[o];
+		if (pMass + oMass == 0) {
+			//Two massless particles, as if they weighed the same
+			pMass = 1;
+			oMass = 1;
+		}
+		float po_dx = store.x[p] - store.x[o];
+		float po_dy = store.y[p] - store.y[o];
+		float sinPhi, cosPhi, distance;
+
+		//Get trigo angle shifts needed for collision to be 1D
+		distance = (float) Math.sqrt (po_dx * po_dx + po_dy * po_dy);
+		if (distance > 0) {
+			sinPhi = po_dy / distance;
+			cosPhi = po_dx / distance;
+		}
+		else {
+			//Same fixed normal as ContactSolver
+			sinPhi = 0;
+			cosPhi = 1;
+		}
+
+		float pOldVx = vx[p], pOldVy = vy[p], oOldVx = vx[o], oOldVy = vy[o];
+
+		//Transform velocities to rotated coordinate system
+		float pVelRefInitDx = vx[p] * cosPhi + vy[p] * sinPhi;
+		float pVelRefInitDy = vx[p] * -sinPhi + vy[p] * cosPhi;
+		float oVelRefInitDx = vx[o] * cosPhi + vy[o] * sinPhi;
+		float oVelRefInitDy = vx[o] * -sinPhi + vy[o] * cosPhi;
+
+		//Calculate new velocities based on 1D collision
+		float pVelRefFinalDx = (pVelRefInitDx * (pMass - oMass) + 2 * oMass * oVelRefInitDx) / (pMass + oMass);
+		float oVelRefFinalDx = (oVelRefInitDx * (oMass - pMass) + 2 * pMass * pVelRefInitDx) / (pMass + oMass);
+
+		//Will not exit penetration in 1 update, push apart with velocity bias which is valid for 2 updates only
+		/*float scale;
+		float minDistance = p.getR () + o.getR ();
+		float horizontalIncrease = (pVelRefFinal.dx < 0 ? -pVelRefFinal.dx : pVelRefFinal.dx)
+								   + (oVelRefFinal.dx < 0 ? -oVelRefFinal.dx : oVelRefFinal.dx);
+
+		if (distance + horizontalIncrease < minDistance) {
+			scale = 1 - (minDistance - distance) / horizontalIncrease;
+			Vector2D pBias = new Vector2D (pVelRefFinal.dx * scale, 0);
+			Vector2D oBias = new Vector2D (oVelRefFinal.dx * scale, 0);
+			p.setBias (pBias);
+			o.setBias (oBias);
+
+			//Apply biases
+			pVelRefFinal.add (pBias);
+			oVelRefFinal.add (oBias);
+		}
+		else {
+			//Remove biases
+			if (p.hasBias ()) {
+				pVelRefFinal.subtract (p.getBias ());
+			}
+			if (o.hasBias ()) {
+				oVelRefFinal.subtract (o.getBias ());
+			}
+		}*/
+
+		//Transform velocities back to original system
+		vx[p] = pVelRefFinalDx * cosPhi - pVelRefInitDy * sinPhi;
+		vy[p] = pVelRefFinalDx * sinPhi + pVelRefInitDy * cosPhi;
+		vx[o] = oVelRefFinalDx * cosPhi - oVelRefInitDy * sinPhi;
+		vy[o] = oVelRefFinalDx * sinPhi + oVelRefInitDy * cosPhi;
+
+		if (delta != null) {
+			delta.changed (p, pOldVx, pOldVy);
+			delta.changed (o, oOldVx, oOldVy);
+		}
+	}
+}
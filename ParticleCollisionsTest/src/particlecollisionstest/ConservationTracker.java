@@ -0,0 +1,224 @@
+package particlecollisionstest;
+
+import java.util.Arrays;
+
+/*
+ * Kinetic energy and linear momentum of the whole system and of every species, kept up to date in O(1)
+ * Whatever changes a velocity (the elastic response, a wall bounce) records the change in a Totals delta,
+ * the engine folds the deltas in at the end of every step. Each parallel task has its own delta, so
+ * nothing is shared between threads and the deltas are always folded in the same order.
+ *
+ * Every recomputeInterval steps the totals are summed again from scratch, the difference to the tracked
+ * values is the drift: velocities changed somewhere that does not report it, or rounding.
+ */
+public class ConservationTracker {
+
+	private ParticleStore store;
+	private Totals totals;
+	private Totals exact;
+	private int recomputeInterval;
+	private double energyDrift;
+	private double momentumDrift;
+	private double maxEnergyDrift;
+
+	public ConservationTracker (ParticleStore store) {
+		this.store = store;
+		this.totals = new Totals (store);
+		this.exact = new Totals (store);
+		this.recomputeInterval = 0;
+		recompute ();
+	}
+
+	/*
+	 * A delta for one stepping task, hand it to CollisionResponse.setDelta
+	 */
+	public Totals newDelta () {
+		return new Totals (store);
+	}
+
+	/*
+	 * Folds a delta into the totals and clears it
+	 */
+	public void apply (Totals delta) {
+		totals.add (delta);
+		delta.clear ();
+	}
+
+	/*
+	 * A particle joined the system
+	 */
+	public void added (int p) {
+		totals.add (p);
+	}
+
+	/*
+	 * Full recompute every interval steps, 0 never
+	 */
+	public void setRecomputeInterval (int recomputeInterval) {
+		this.recomputeInterval = Math.max (0, recomputeInterval);
+	}
+
+	public int getRecomputeInterval () {
+		return recomputeInterval;
+	}
+
+	public void endStep (long stepCount) {
+		if (recomputeInterval > 0 && stepCount % recomputeInterval == 0) {
+			recompute ();
+		}
+	}
+
+	/*
+	 * Sums everything again, records the drift of the tracked totals and replaces them
+	 * Returns the relative energy drift
+	 */
+	public double recompute () {
+		exact.clear ();
+		for (int i = 0; i < store.size (); i++) {
+			exact.add (i);
+		}
+
+		energyDrift = exact.energy != 0 ? Math.abs (totals.energy - exact.energy) / exact.energy : Math.abs (totals.energy);
+		momentumDrift = Math.hypot (totals.momentumX - exact.momentumX, totals.momentumY - exact.momentumY);
+		maxEnergyDrift = Math.max (maxEnergyDrift, energyDrift);
+
+		Totals swap = totals;
+		totals = exact;
+		exact = swap;
+		return energyDrift;
+	}
+
+	public double getKineticEnergy () {
+		return totals.energy;
+	}
+
+	public double getMomentumX () {
+		return totals.momentumX;
+	}
+
+	public double getMomentumY () {
+		return totals.momentumY;
+	}
+
+	/*
+	 * One past the highest species seen
+	 */
+	public int getSpeciesCount () {
+		return totals.speciesCount;
+	}
+
+	public double getKineticEnergy (int species) {
+		return species < totals.speciesCount ? totals.speciesEnergy[species] : 0;
+	}
+
+	public double getMomentumX (int species) {
+		return species < totals.speciesCount ? totals.speciesMomentumX[species] : 0;
+	}
+
+	public double getMomentumY (int species) {
+		return species < totals.speciesCount ? totals.speciesMomentumY[species] : 0;
+	}
+
+	/*
+	 * Relative energy drift found by the last recompute
+	 */
+	public double getEnergyDrift () {
+		return energyDrift;
+	}
+
+	public double getMaxEnergyDrift () {
+		return maxEnergyDrift;
+	}
+
+	/*
+	 * Size of the momentum vector drift found by the last recompute
+	 */
+	public double getMomentumDrift () {
+		return momentumDrift;
+	}
+
+	/*
+	 * Energy and momentum sums, used both for the running totals and for the per task deltas
+	 * Sums are kept in double, the float velocities are widened before squaring.
+	 */
+	public static class Totals {
+		private ParticleStore store;
+		private double energy;
+		private double momentumX;
+		private double momentumY;
+		private double[] speciesEnergy;
+		private double[] speciesMomentumX;
+		private double[] speciesMomentumY;
+		private int speciesCount;
+
+		public Totals (ParticleStore store) {
+			this.store = store;
+			this.speciesEnergy = new double[1];
+			this.speciesMomentumX = new double[1];
+			this.speciesMomentumY = new double[1];
+			this.speciesCount = 0;
+		}
+
+		/*
+		 * The velocity of p changed from (oldVx, oldVy) to what is in the store now
+		 */
+		public void changed (int p, float oldVx, float oldVy) {
+			double m = store.mass[p];
+			double vx = store.vx[p], vy = store.vy[p];
+			record (store.species[p],
+					0.5 * m * (vx * vx + vy * vy - (double) oldVx * oldVx - (double) oldVy * oldVy),
+					m * (vx - oldVx),
+					m * (vy - oldVy));
+		}
+
+		/*
+		 * Everything p carries
+		 */
+		public void add (int p) {
+			double m = store.mass[p];
+			double vx = store.vx[p], vy = store.vy[p];
+			record (store.species[p], 0.5 * m * (vx * vx + vy * vy), m * vx, m * vy);
+		}
+
+		public void add (Totals o) {
+			energy += o.energy;
+			momentumX += o.momentumX;
+			momentumY += o.momentumY;
+			ensureSpecies (o.speciesCount);
+			for (int s = 0; s < o.speciesCount; s++) {
+				speciesEnergy[s] += o.speciesEnergy[s];
+				speciesMomentumX[s] += o.speciesMomentumX[s];
+				speciesMomentumY[s] += o.speciesMomentumY[s];
+			}
+		}
+
+		public void clear () {
+			energy = 0;
+			momentumX = 0;
+			momentumY = 0;
+			Arrays.fill (speciesEnergy, 0);
+			Arrays.fill (speciesMomentumX, 0);
+			Arrays.fill (speciesMomentumY, 0);
+		}
+
+		private void record (int species, double dEnergy, double dMomentumX, double dMomentumY) {
+			energy += dEnergy;
+			momentumX += dMomentumX;
+			momentumY += dMomentumY;
+			ensureSpecies (species + 1);
+			speciesEnergy[species] += dEnergy;
+			speciesMomentumX[species] += dMomentumX;
+			speciesMomentumY[species] += dMomentumY;
+		}
+
+		private void ensureSpecies (int count) {
+			if (count > speciesEnergy.length) {
+				int length = Math.max (count, speciesEnergy.length * 2);
+				speciesEnergy = Arrays.copyOf (speciesEnergy, length);
+				speciesMomentumX = Arrays.copyOf (speciesMomentumX, length);
+				speciesMomentumY = Arrays.copyOf (speciesMomentumY, length);
+			}
+			speciesCount = Math.max (speciesCount, count);
+		}
+	}
+}
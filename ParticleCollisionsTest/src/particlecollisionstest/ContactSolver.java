@@ -0,0 +1,480 @@
+package particlecollisionstest;
+
+import java.util.Arrays;
+
+/*
+ * Sequential impulse contact solver, the alternative to the discrete StepPipeline for dense packings
+ * The discrete pipeline moves particles back and forth for every overlapping pair and settles nothing,
+ * here every contact gets a non-negative normal impulse that is refined over a fixed number of
+ * iterations, so a cluster converges towards resting contacts instead of jittering:
+ * 1) broadphase      update/rebuild on the positions at the start of the step
+ * 2) contacts        candidate pairs that overlap or will meet within the step, in pair key order
+ * 3) bounce          one restitution impulse for every contact still approaching faster than the
+ *                    resting speed when its turn comes, like an elastic collision in the other modes
+ * 4) solve           the other contacts are warm started with the impulse the same pair ended the
+ *                    previous step with, then iterations over every contact clamp each accumulated
+ *                    impulse to >= 0 and stop it approaching
+ * 5) integrate       move everything by its new velocity, bounce off the walls, then push pairs that
+ *                    still overlap by more than the slop apart without touching their velocities
+ *
+ * Bounces happen once per contact and outside the iterations, iterating towards restitution targets
+ * over a cluster of contacts pumps energy into it. The iterations only ever remove approach speed.
+ * Impulses of resting contacts are kept in a hash table keyed by pair, so a settled pile starts every
+ * step close to its solution and the work per step stays linear in the number of contacts.
+ *
+ * Settled islands can be put to sleep (see SleepIslands), they are then skipped by every stage but
+ * the bulk pair finding, where an awake particle reaching one of them wakes it. A query per awake
+ * particle instead was measured several times slower than one findPairs even with most asleep.
+ *
+ * Runs on the calling thread only, sequential impulses need every contact to see the ones before it.
+ * Positional correction is timed as part of integration.
+ */
+public class ContactSolver {
+
+	private ParticleStore store;
+	private Broadphase broadphase;
+	private CollisionResponse response;
+	private StepMetrics metrics;
+	private int iterations;
+	private float restitution;
+	private float restingSpeed;
+	private float slop;
+	private float correction;
+	//Contacts of the current step, sorted by pair key
+	private long[] keys;
+	private float[] normalX;
+	private float[] normalY;
+	private float[] normalMass;
+	private float[] target;
+	private float[] impulse;
+	private boolean[] bounced;
+	private int contactCount;
+	//Resting impulses of the previous step and of this one, swapped every step
+	private ImpulseCache previous;
+	private ImpulseCache current;
+	private IntList pairs;
+	private SleepIslands sleep;
+	private long penetrations;
+	private long warmStarts;
+
+	public ContactSolver (ParticleStore store, Broadphase broadphase, CollisionResponse response, StepMetrics metrics) {
+		this.store = store;
+		this.broadphase = broadphase;
+		this.response = response;
+		this.metrics = metrics;
+		this.iterations = 8;
+		this.restitution = 1;
+		this.restingSpeed = 0.05f;
+		this.slop = 0.01f;
+		this.correction = 0.4f;
+		this.keys = new long[16];
+		this.normalX = new float[16];
+		this.normalY = new float[16];
+		this.normalMass = new float[16];
+		this.target = new float[16];
+		this.impulse = new float[16];
+		this.bounced = new boolean[16];
+		this.previous = new ImpulseCache ();
+		this.current = new ImpulseCache ();
+		this.pairs = new IntList ();
+	}
+
+	/*
+	 * Passes over all contacts per step
+	 */
+	public void setIterations (int iterations) {
+		this.iterations = Math.max (1, iterations);
+	}
+
+	public int getIterations () {
+		return iterations;
+	}
+
+	/*
+	 * Fraction of the approach speed a bouncing contact separates with, 1 keeps the energy
+	 */
+	public void setRestitution (float restitution) {
+		this.restitution = restitution;
+	}
+
+	public float getRestitution () {
+		return restitution;
+	}
+
+	/*
+	 * Approach speeds up to this are resting contacts that do not bounce
+	 */
+	public void setRestingSpeed (float restingSpeed) {
+		this.restingSpeed = restingSpeed;
+	}
+
+	public float getRestingSpeed () {
+		return restingSpeed;
+	}
+
+	/*
+	 * Overlap left alone by the positional correction, as a fraction of the contact distance, and the
+	 * fraction of the rest that is removed every step
+	 */
+	public void setPositionCorrection (float slop, float correction) {
+		this.slop = slop;
+		this.correction = correction;
+	}
+
+	/*
+	 * Contacts still overlapping by more than the slop after the positional correction since creation
+	 */
+	public long getPenetrations () {
+		return penetrations;
+	}
+
+	/*
+	 * Contacts that started from the previous step's impulse since creation
+	 */
+	public long getWarmStarts () {
+		return warmStarts;
+	}
+
+	public int getContactCount () {
+		return contactCount;
+	}
+
+	/*
+	 * Off by default, turning it off wakes everything
+	 */
+	public void setSleeping (boolean enabled) {
+		if (enabled && sleep == null) {
+			sleep = new SleepIslands (store, response);
+		}
+		else if (!enabled) {
+			sleep = null;
+		}
+	}
+
+	/*
+	 * null while sleeping is off
+	 */
+	public SleepIslands getSleepIslands () {
+		return sleep;
+	}
+
+	/*
+	 * The store was permuted (see Simulation.reorder), cached impulses follow their particles
+	 */
+	public void reorder (int[] newIds) {
+		previous.rename (newIds, current);
+		ImpulseCache swap = previous;
+		previous = current;
+		current = swap;
+		if (sleep != null) {
+			sleep.reorder (newIds);
+		}
+	}
+
+	/*
+	 * The store was filled from elsewhere, nothing cached applies
+	 */
+	public void reload () {
+		previous.clear ();
+		current.clear ();
+		if (sleep != null) {
+			sleep.wakeAll ();
+		}
+	}
+
+	public void step () {
+		int n = store.size ();
+		float dt = store.getTimeStep ();
+
+		long time = metrics.start ();
+		if (sleep != null) {
+			sleep.ensureCapacity (n);
+		}
+		for (int i = 0; i < n; i++) {
+			if (sleep == null || !sleep.isAsleep (i)) {
+				broadphase.update (i);
+			}
+		}
+		broadphase.rebuild ();
+		time = metrics.lap (StepMetrics.Stage.TREE_UPDATE, time);
+
+		pairs.clear ();
+		broadphase.findPairs (pairs);
+		if (sleep != null) {
+			for (int i = 0; i < pairs.size (); i += 2) {
+				sleep.wakeIfDisturbed (pairs.get (i), pairs.get (i + 1));
+			}
+		}
+		metrics.countCandidatePairs (pairs.size () / 2);
+		time = metrics.lap (StepMetrics.Stage.QUERY, time);
+
+		findContacts (dt);
+		bounce ();
+		warmStart ();
+		metrics.countCollisions (contactCount);
+		time = metrics.lap (StepMetrics.Stage.NARROWPHASE, time);
+
+		for (int k = 0; k < iterations; k++) {
+			solve ();
+		}
+		cacheImpulses ();
+		time = metrics.lap (StepMetrics.Stage.RESPONSE, time);
+
+		for (int i = 0; i < n; i++) {
+			if (sleep == null || !sleep.isAsleep (i)) {
+				response.updateNextPosition (i);
+				response.updateBoundryCheck (i);
+			}
+		}
+		long stepPenetrations = correctPositions ();
+		penetrations += stepPenetrations;
+		metrics.countPenetrations (stepPenetrations);
+		if (sleep != null) {
+			sleep.update (keys, contactCount);
+		}
+		metrics.lap (StepMetrics.Stage.INTEGRATE, time);
+	}
+
+	private void ensureCapacity (int count) {
+		if (count > keys.length) {
+			int capacity = Math.max (count, keys.length * 2);
+			keys = Arrays.copyOf (keys, capacity);
+			normalX = new float[capacity];
+			normalY = new float[capacity];
+			normalMass = new float[capacity];
+			target = new float[capacity];
+			impulse = new float[capacity];
+			bounced = new boolean[capacity];
+		}
+	}
+
+	/*
+	 * Candidate pairs that touch now or close in on each other fast enough to touch within the step
+	 */
+	private void findContacts (float dt) {
+		float[] x = store.x, y = store.y, vx = store.vx, vy = store.vy, r = store.r;
+		contactCount = 0;
+
+		for (int i = 0; i < pairs.size (); i += 2) {
+			int p = pairs.get (i), o = pairs.get (i + 1);
+			if (sleep != null && (sleep.isAsleep (p) || sleep.isAsleep (o))) {
+				continue;
+			}
+			float dx = x[o] - x[p], dy = y[o] - y[p];
+			float distance = (float) Math.sqrt (dx * dx + dy * dy);
+			float gap = distance - (r[p] + r[o]);
+			if (gap > 0) {
+				float approach = distance > 0 ? ((vx[p] - vx[o]) * dx + (vy[p] - vy[o]) * dy) / distance : 0;
+				if (approach * dt <= gap) {
+					continue;
+				}
+			}
+
+			ensureCapacity (contactCount + 1);
+			keys[contactCount++] = ((long) Math.min (p, o) << 32) | Math.max (p, o);
+		}
+
+		//Same order for every broadphase
+		LongSort.sort (keys, 0, contactCount);
+
+		float[] mass = store.mass;
+		for (int c = 0; c < contactCount; c++) {
+			int p = (int) (keys[c] >>> 32), o = (int) keys[c];
+			float dx = x[o] - x[p], dy = y[o] - y[p];
+			float distance = (float) Math.sqrt (dx * dx + dy * dy);
+			float nx = 1, ny = 0;
+			if (distance > 0) {
+				nx = dx / distance;
+				ny = dy / distance;
+			}
+			normalX[c] = nx;
+			normalY[c] = ny;
+			//A massless particle (r = 0) takes no impulse
+			normalMass[c] = mass[p] > 0 && mass[o] > 0 ? mass[p] * mass[o] / (mass[p] + mass[o]) : 0;
+			impulse[c] = 0;
+
+			//May close the remaining gap but not approach any further
+			float gap = distance - (r[p] + r[o]);
+			target[c] = gap > 0 ? -gap / dt : 0;
+		}
+	}
+
+	private void bounce () {
+		float[] vx = store.vx, vy = store.vy;
+		for (int c = 0; c < contactCount; c++) {
+			int p = (int) (keys[c] >>> 32), o = (int) keys[c];
+			float normalSpeed = (vx[o] - vx[p]) * normalX[c] + (vy[o] - vy[p]) * normalY[c];
+			//Pairs with a massless particle have no normal mass and take no impulse
+			bounced[c] = normalMass[c] > 0 && normalSpeed < -restingSpeed && restitution > 0;
+			if (bounced[c]) {
+				response.applyImpulse (p, o, normalX[c], normalY[c], -(1 + restitution) * normalSpeed * normalMass[c]);
+			}
+		}
+	}
+
+	/*
+	 * Resting contacts start from last step's impulse, bounces are new events and start from 0
+	 */
+	private void warmStart () {
+		for (int c = 0; c < contactCount; c++) {
+			if (bounced[c]) {
+				continue;
+			}
+			float cached = previous.get (keys[c]);
+			if (cached > 0) {
+				impulse[c] = cached;
+				response.applyImpulse ((int) (keys[c] >>> 32), (int) keys[c], normalX[c], normalY[c], cached);
+				warmStarts++;
+			}
+		}
+	}
+
+	private void solve () {
+		float[] vx = store.vx, vy = store.vy;
+		for (int c = 0; c < contactCount; c++) {
+			if (normalMass[c] == 0) {
+				continue;
+			}
+			int p = (int) (keys[c] >>> 32), o = (int) keys[c];
+			float normalSpeed = (vx[o] - vx[p]) * normalX[c] + (vy[o] - vy[p]) * normalY[c];
+			float accumulated = Math.max (0, impulse[c] + normalMass[c] * (target[c] - normalSpeed));
+			float change = accumulated - impulse[c];
+			if (change != 0) {
+				response.applyImpulse (p, o, normalX[c], normalY[c], change);
+				impulse[c] = accumulated;
+			}
+		}
+	}
+
+	private void cacheImpulses () {
+		ImpulseCache swap = previous;
+		previous = current;
+		current = swap;
+		previous.clear ();
+		for (int c = 0; c < contactCount; c++) {
+			if (!bounced[c] && impulse[c] > 0) {
+				previous.put (keys[c], impulse[c]);
+			}
+		}
+	}
+
+	/*
+	 * Moves overlapping pairs apart in proportion to their inverse mass, returns how many overlap by more
+	 * than the slop before
+	 */
+	private long correctPositions () {
+		float[] x = store.x, y = store.y, r = store.r, mass = store.mass;
+		long deep = 0;
+
+		for (int c = 0; c < contactCount; c++) {
+			int p = (int) (keys[c] >>> 32), o = (int) keys[c];
+			float dx = x[o] - x[p], dy = y[o] - y[p];
+			float contact = r[p] + r[o];
+			float distanceSquared = dx * dx + dy * dy;
+			float allowed = contact * (1 - slop);
+			if (distanceSquared >= allowed * allowed) {
+				continue;
+			}
+			deep++;
+
+			float distance = (float) Math.sqrt (distanceSquared);
+			float nx = normalX[c], ny = normalY[c];
+			if (distance > 0) {
+				nx = dx / distance;
+				ny = dy / distance;
+			}
+			float push = correction * (allowed - distance);
+			float pShare = mass[p] + mass[o] > 0 ? mass[o] / (mass[p] + mass[o]) : 0.5f, oShare = 1 - pShare;
+			x[p] -= nx * push * pShare;
+			y[p] -= ny * push * pShare;
+			x[o] += nx * push * oShare;
+			y[o] += ny * push * oShare;
+		}
+		return deep;
+	}
+
+	/*
+	 * Open addressing table from pair key to impulse, keys are never negative so -1 marks a free slot
+	 */
+	private static class ImpulseCache {
+		private static final long FREE = -1;
+
+		long[] keys;
+		float[] values;
+		int size;
+		int mask;
+
+		ImpulseCache () {
+			keys = new long[64];
+			values = new float[64];
+			mask = keys.length - 1;
+			Arrays.fill (keys, FREE);
+		}
+
+		void clear () {
+			if (size > 0) {
+				Arrays.fill (keys, FREE);
+				size = 0;
+			}
+		}
+
+		float get (long key) {
+			for (int slot = slot (key); ; slot = (slot + 1) & mask) {
+				if (keys[slot] == key) {
+					return values[slot];
+				}
+				if (keys[slot] == FREE) {
+					return 0;
+				}
+			}
+		}
+
+		void put (long key, float value) {
+			if (2 * (size + 1) > keys.length) {
+				grow ();
+			}
+			int slot = slot (key);
+			while (keys[slot] != FREE && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			if (keys[slot] == FREE) {
+				size++;
+			}
+			keys[slot] = key;
+			values[slot] = value;
+		}
+
+		/*
+		 * Copies every entry into out (cleared first) with both ids renamed
+		 */
+		void rename (int[] newIds, ImpulseCache out) {
+			out.clear ();
+			for (int slot = 0; slot < keys.length; slot++) {
+				if (keys[slot] != FREE) {
+					int p = newIds[(int) (keys[slot] >>> 32)], o = newIds[(int) keys[slot]];
+					out.put (((long) Math.min (p, o) << 32) | Math.max (p, o), values[slot]);
+				}
+			}
+		}
+
+		private int slot (long key) {
+			long h = key * 0x9e3779b97f4a7c15L;
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+
+		private void grow () {
+			long[] oldKeys = keys;
+			float[] oldValues = values;
+			keys = new long[oldKeys.length * 2];
+			values = new float[oldKeys.length * 2];
+			mask = keys.length - 1;
+			Arrays.fill (keys, FREE);
+			size = 0;
+			for (int slot = 0; slot < oldKeys.length; slot++) {
+				if (oldKeys[slot] != FREE) {
+					put (oldKeys[slot], oldValues[slot]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package particlecollisionstest;
+
+/*
+ * Fails with exit code 1 when continuous collision detection lets a particle through a wall or another one
+ * Runs CONTINUOUS mode on every broadphase at time steps well above 1, where a fast particle moves
+ * further than its diameter in a step. A particle inside the walls before a step has to be inside after
+ * it, the scene generator may place some across a wall to begin with, and the stepper must not find
+ * any pair overlapping when its event comes up (see ContinuousStepper.getPenetrations).
+ * Usage: ContinuousCheck [particles] [steps] [seed]
+ */
+public class ContinuousCheck {
+
+	private static final float[] TIME_STEPS = {2, 4, 8};
+	//Positions end up a rounding error past the contact point
+	private static final float WALL_SLOP = 1e-3f;
+
+	public static void main (String[] args) {
+		int count = args.length > 0 ? Integer.parseInt (args[0]) : 2000;
+		int steps = args.length > 1 ? Integer.parseInt (args[1]) : 300;
+		long seed = args.length > 2 ? Long.parseLong (args[2]) : 7;
+
+		boolean passed = true;
+		for (Broadphase.Type type : Broadphase.Type.values ()) {
+			for (float timeStep : TIME_STEPS) {
+				passed &= check (type, timeStep, count, steps, seed);
+			}
+		}
+
+		System.out.println (passed ? "No escapes and no penetrations" : "Particles get through");
+		System.exit (passed ? 0 : 1);
+	}
+
+	private static boolean check (Broadphase.Type type, float timeStep, int count, int steps, long seed) {
+		float width = 1920, height = 1200;
+		Simulation simulation = new Simulation (width, height, type);
+		simulation.setCollisionMode (Simulation.CollisionMode.CONTINUOUS);
+		simulation.setTimeStep (timeStep);
+		SceneGenerator.populateHalton (simulation, count, new SeedableRandom (seed));
+		ParticleStore store = simulation.getStore ();
+		ContinuousStepper stepper = simulation.getContinuousStepper ();
+
+		boolean[] inside = new boolean[store.size ()];
+		long escapes = 0;
+		for (int step = 0; step < steps; step++) {
+			for (int i = 0; i < store.size (); i++) {
+				inside[i] = inside (store, i, width, height);
+			}
+			simulation.step ();
+			for (int i = 0; i < store.size (); i++) {
+				if (inside[i] && !inside (store, i, width, height)) {
+					escapes++;
+				}
+			}
+		}
+		long penetrations = stepper.getPenetrations ();
+		simulation.shutdown ();
+
+		System.out.println (type + ", time step " + timeStep + ": " + escapes + " escapes, " + penetrations + " penetrations in "
+			+ stepper.getEvents () + " events, " + stepper.getCrowdedSteps () + " crowded steps");
+		return escapes == 0 && penetrations == 0;
+	}
+
+	private static boolean inside (ParticleStore store, int i, float width, float height) {
+		float r = store.r[i] * (1 - WALL_SLOP);
+		return store.x[i] >= r && store.x[i] <= width - r && store.y[i] >= r && store.y[i] <= height - r;
+	}
+}
@@ -0,0 +1,314 @@
+package particlecollisionstest;
+
+/*
+ * Continuous collision detection, the alternative to the discrete StepPipeline
+ * Instead of moving everything a full step and undoing overlaps, every candidate pair from the
+ * swept boxes gets its time of impact and the step is played back in event order:
+ * 1) broadphase      update/rebuild on the positions at the start of the step
+ * 2) predict         time of impact of every candidate pair and every particle with the walls
+ * 3) events          pop the earliest event, move just the particles involved up to it, bounce them
+ *                    and predict again for those two from the broadphase over the rest of the step
+ * 4) finish          move everything to the end of the step
+ *
+ * Each particle keeps its own local time inside the step so only the particles involved in an event move.
+ * Events are invalidated lazily by per-particle collision counts (see EventQueue).
+ * Fast small particles can no longer tunnel through each other, so the time step can be much larger
+ * than with the discrete pipeline.
+ *
+ * The broadphase holds the box each particle sweeps over the rest of the step (see ParticleStore.setSweep)
+ * as it was at the last refresh. A bounce can send a particle out of that box, then it is escaped and
+ * tested against everyone that predicts from there on, since the broadphase can not find it. Once more
+ * than 1 / REFRESH_FRACTION of the particles escaped, every box is updated to the path left and the
+ * broadphase rebuilt. So no pair that meets within the step is missed, and query results are cut down
+ * to the ids whose kept box really overlaps, which does not depend on the broadphase either.
+ * Every event is played back however many a step takes, a step with more than CROWDED_EVENTS_PER_PARTICLE
+ * per particle, a jammed cluster or a time step far too long for the scene, counts as crowded.
+ * Runs on the calling thread only. Stages are timed into StepMetrics, the time of impact tests count as
+ * the query stage since there is no separate narrowphase.
+ */
+public class ContinuousStepper {
+
+	private static final int CROWDED_EVENTS_PER_PARTICLE = 16;
+	private static final int REFRESH_FRACTION = 8;
+	//Overlap deeper than this fraction of the contact distance counts as a penetration
+	private static final float PENETRATION_SLOP = 1e-3f;
+
+	private ParticleStore store;
+	private Broadphase broadphase;
+	private CollisionResponse response;
+	private float width;
+	private float height;
+	private EventQueue queue;
+	private float[] localTime;
+	private int[] collisionCount;
+	//Fraction of the step left to every particle, its box in the broadphase covers that much of its path
+	private float[] sweep;
+	//Swept boxes as the broadphase holds them since the last refresh, for an escaped particle the box
+	//from its last bounce to the end of the step instead
+	private float[] boxMinX;
+	private float[] boxMinY;
+	private float[] boxMaxX;
+	private float[] boxMaxY;
+	//Particles whose path after a bounce left their box, the broadphase can not find them
+	private boolean[] escaped;
+	private IntList escapedIds;
+	private IntList pairs;
+	private IntList candidates;
+	private QuadTree.QuadTreeQuery query;
+	private long penetrations;
+	private long events;
+	private long crowdedSteps;
+	private StepMetrics metrics;
+
+	public ContinuousStepper (ParticleStore store, Broadphase broadphase, CollisionResponse response, float width, float height, StepMetrics metrics) {
+		this.store = store;
+		this.metrics = metrics;
+		this.broadphase = broadphase;
+		this.response = response;
+		this.width = width;
+		this.height = height;
+		this.queue = new EventQueue (store.capacity ());
+		this.localTime = new float[store.capacity ()];
+		this.collisionCount = new int[store.capacity ()];
+		this.sweep = new float[store.capacity ()];
+		this.boxMinX = new float[store.capacity ()];
+		this.boxMinY = new float[store.capacity ()];
+		this.boxMaxX = new float[store.capacity ()];
+		this.boxMaxY = new float[store.capacity ()];
+		this.escaped = new boolean[store.capacity ()];
+		this.escapedIds = new IntList ();
+		this.pairs = new IntList ();
+		this.candidates = new IntList ();
+		this.query = new QuadTree.QuadTreeQuery ();
+	}
+
+	/*
+	 * Pairs found overlapping when their event came up since creation
+	 */
+	public long getPenetrations () {
+		return penetrations;
+	}
+
+	/*
+	 * Collisions (pair and wall) processed since creation
+	 */
+	public long getEvents () {
+		return events;
+	}
+
+	/*
+	 * Steps with more than CROWDED_EVENTS_PER_PARTICLE events per particle since creation
+	 */
+	public long getCrowdedSteps () {
+		return crowdedSteps;
+	}
+
+	public void step () {
+		int n = store.size ();
+		float dt = store.getTimeStep ();
+		ensureCapacity (n);
+
+		long time = metrics.start ();
+		for (int i = 0; i < n; i++) {
+			localTime[i] = 0;
+			collisionCount[i] = 0;
+		}
+		store.setSweep (sweep);
+		refresh (n, dt);
+		time = metrics.lap (StepMetrics.Stage.TREE_UPDATE, time);
+
+		queue.clear ();
+		pairs.clear ();
+		broadphase.findPairs (pairs);
+		for (int i = 0; i < pairs.size (); i += 2) {
+			predictPair (pairs.get (i), pairs.get (i + 1), 0, dt);
+		}
+		for (int i = 0; i < n; i++) {
+			predictWalls (i, 0, dt);
+		}
+		metrics.countCandidatePairs (pairs.size () / 2);
+		time = metrics.lap (StepMetrics.Stage.QUERY, time);
+
+		long eventsBefore = events, penetrationsBefore = penetrations;
+		processEvents (n, dt);
+		metrics.countCollisions (events - eventsBefore);
+		metrics.countPenetrations (penetrations - penetrationsBefore);
+		if (events - eventsBefore > (long) CROWDED_EVENTS_PER_PARTICLE * n) {
+			crowdedSteps++;
+			metrics.countCrowdedSteps (1);
+		}
+		time = metrics.lap (StepMetrics.Stage.RESPONSE, time);
+
+		for (int i = 0; i < n; i++) {
+			response.advance (i, dt - localTime[i]);
+		}
+		store.setSweep (null);
+		metrics.lap (StepMetrics.Stage.INTEGRATE, time);
+	}
+
+	private void ensureCapacity (int n) {
+		if (n > localTime.length) {
+			int capacity = Math.max (n, localTime.length * 2);
+			localTime = new float[capacity];
+			collisionCount = new int[capacity];
+			sweep = new float[capacity];
+			boxMinX = new float[capacity];
+			boxMinY = new float[capacity];
+			boxMaxX = new float[capacity];
+			boxMaxY = new float[capacity];
+			escaped = new boolean[capacity];
+		}
+	}
+
+	/*
+	 * Puts the box of every particle over the rest of its path into the broadphase, none is escaped after
+	 */
+	private void refresh (int n, float dt) {
+		for (int i = 0; i < n; i++) {
+			pathBox (i, dt, query);
+			broadphase.update (i);
+			boxMinX[i] = query.x;
+			boxMinY[i] = query.y;
+			boxMaxX[i] = query.x + query.w;
+			boxMaxY[i] = query.y + query.h;
+			escaped[i] = false;
+		}
+		escapedIds.clear ();
+		broadphase.rebuild ();
+	}
+
+	/*
+	 * Plays back events in time order until none is left
+	 */
+	private void processEvents (int n, float dt) {
+		while (!queue.isEmpty ()) {
+			float t = (float) queue.peekTime ();
+			int a = queue.peekA (), b = queue.peekB ();
+			int countA = queue.peekCountA (), countB = queue.peekCountB ();
+			queue.pop ();
+
+			//Stale, one of them already bounced since this was predicted
+			if (collisionCount[a] != countA || (b >= 0 && collisionCount[b] != countB)) {
+				continue;
+			}
+			events++;
+
+			moveTo (a, t);
+			collisionCount[a]++;
+			if (b == EventQueue.WALL_X) {
+				response.reflectX (a);
+			}
+			else if (b == EventQueue.WALL_Y) {
+				response.reflectY (a);
+			}
+			else {
+				moveTo (b, t);
+				collisionCount[b]++;
+				if (overlaps (a, b)) {
+					penetrations++;
+				}
+				response.exchangeVelocities (a, b);
+			}
+
+			predict (a, t, dt);
+			if (b >= 0) {
+				predict (b, t, dt);
+			}
+			if (REFRESH_FRACTION * escapedIds.size () > n) {
+				refresh (n, dt);
+			}
+		}
+	}
+
+	private void moveTo (int p, float t) {
+		response.advance (p, t - localTime[p]);
+		localTime[p] = t;
+	}
+
+	private boolean overlaps (int p, int o) {
+		float deltaX = store.x[p] - store.x[o];
+		float deltaY = store.y[p] - store.y[o];
+		float minDist = (store.r[p] + store.r[o]) * (1 - PENETRATION_SLOP);
+
+		return deltaX * deltaX + deltaY * deltaY < minDist * minDist;
+	}
+
+	/*
+	 * New events for a particle that just bounced at time t
+	 * The query covers where this particle goes for the rest of the step. The broadphase boxes cover the
+	 * rest of the path of every particle that never left its box, the escaped ones are tested one by one.
+	 * Either way the box kept for a particle is what the query is tested against.
+	 */
+	private void predict (int p, float t, float dt) {
+		predictWalls (p, t, dt);
+
+		pathBox (p, dt, query);
+		float minX = query.x, minY = query.y, maxX = query.x + query.w, maxY = query.y + query.h;
+		if (!escaped[p] && (minX < boxMinX[p] || minY < boxMinY[p] || maxX > boxMaxX[p] || maxY > boxMaxY[p])) {
+			escaped[p] = true;
+			escapedIds.add (p);
+		}
+		if (escaped[p]) {
+			boxMinX[p] = minX;
+			boxMinY[p] = minY;
+			boxMaxX[p] = maxX;
+			boxMaxY[p] = maxY;
+		}
+
+		candidates.clear ();
+		broadphase.query (query, candidates);
+		for (int i = 0; i < candidates.size (); i++) {
+			int o = candidates.get (i);
+			if (o != p && !escaped[o] && overlaps (o, minX, minY, maxX, maxY)) {
+				predictPair (p, o, t, dt);
+			}
+		}
+		for (int i = 0; i < escapedIds.size (); i++) {
+			int o = escapedIds.get (i);
+			if (o != p && overlaps (o, minX, minY, maxX, maxY)) {
+				predictPair (p, o, t, dt);
+			}
+		}
+	}
+
+	private boolean overlaps (int o, float minX, float minY, float maxX, float maxY) {
+		return boxMinX[o] <= maxX && minX <= boxMaxX[o] && boxMinY[o] <= maxY && minY <= boxMaxY[o];
+	}
+
+	/*
+	 * Box swept by p from its local time to the end of the step, the same box the broadphase gets on an update
+	 */
+	private QuadTree.QuadTreeQuery pathBox (int p, float dt, QuadTree.QuadTreeQuery box) {
+		sweep[p] = dt > 0 ? (dt - localTime[p]) / dt : 0;
+		return store.getQuery (p, box);
+	}
+
+	/*
+	 * Both particles are extrapolated from their own local time to t before solving for the impact
+	 */
+	private void predictPair (int p, int o, float t, float dt) {
+		float[] x = store.x, y = store.y, vx = store.vx, vy = store.vy;
+
+		double dx = (x[o] + vx[o] * (double) (t - localTime[o])) - (x[p] + vx[p] * (double) (t - localTime[p]));
+		double dy = (y[o] + vy[o] * (double) (t - localTime[o])) - (y[p] + vy[p] * (double) (t - localTime[p]));
+		double impact = t + response.timeOfImpact (dx, dy, vx[o] - vx[p], vy[o] - vy[p], store.r[p] + store.r[o]);
+
+		if (impact <= dt) {
+			queue.add (impact, p, o, collisionCount[p], collisionCount[o]);
+		}
+	}
+
+	private void predictWalls (int p, float t, float dt) {
+		double impactX = t + response.timeToWall (store.x[p], store.vx[p], store.r[p], width);
+		double impactY = t + response.timeToWall (store.y[p], store.vy[p], store.r[p], height);
+
+		if (impactX <= dt || impactY <= dt) {
+			if (impactX <= impactY) {
+				queue.add (impactX, p, EventQueue.WALL_X, collisionCount[p], 0);
+			}
+			else {
+				queue.add (impactY, p, EventQueue.WALL_Y, collisionCount[p], 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package particlecollisionstest;
+
+/*
+ * A particle simulation that can be driven by the windowed and headless front ends
+ * Simulation advances in fixed steps, EventDrivenSimulation jumps between collisions,
+ * both expose their state at the end of every step through a ParticleStore.
+ */
+public interface Engine {
+
+	/*
+	 * Adds a particle and returns its id
+	 */
+	public int addParticle (float x, float y, float dx, float dy, float r);
+
+	public int addParticle (float x, float y, float dx, float dy, float r, int species);
+
+	public ParticleStore getStore ();
+
+	/*
+	 * Stage timings and counters, disabled until turned on
+	 */
+	public StepMetrics getMetrics ();
+
+	/*
+	 * Keeps energy and momentum totals up to date every step, see ConservationTracker
+	 */
+	public void setConservationTracking (boolean enabled);
+
+	/*
+	 * null while tracking is off
+	 */
+	public ConservationTracker getConservation ();
+
+	public float getWidth ();
+
+	public float getHeight ();
+
+	/*
+	 * Simulated time covered by one step
+	 */
+	public void setTimeStep (float timeStep);
+
+	public float getTimeStep ();
+
+	public long getStepCount ();
+
+	/*
+	 * Advances by a single step, every particle position in the store is valid at the end of it
+	 */
+	public void step ();
+
+	public void step (int n);
+
+	/*
+	 * The store was filled directly (see Checkpoint) and the engine continues from stepCount,
+	 * everything derived from the store is rebuilt
+	 */
+	public void reload (long stepCount);
+
+	/*
+	 * Stops any worker threads
+	 */
+	public void shutdown ();
+}
@@ -0,0 +1,435 @@
+package particlecollisionstest;
+
+import java.util.Arrays;
+
+/*
+ * Event-driven hard sphere engine for dilute systems
+ * Rather than moving everything every step it predicts the next particle-particle, particle-wall and
+ * cell crossing event of every particle and jumps straight from one event to the next, so time between
+ * collisions costs nothing. A step only processes the events up to the end of the step and then brings
+ * every position in the store up to date for the front ends.
+ *
+ * Particles are moved lazily: the store holds each particle's position at its own lastUpdate time.
+ * Events are invalidated lazily by per-particle collision counts (see EventQueue). Most predictions lie
+ * beyond the next collision of their particle, so stale events are dropped in bulk (EventQueue.compact)
+ * once the queue has grown to STALE_FACTOR + 1 times the events that were live at the last compaction.
+ * Cells are at least one largest diameter wide so a particle only ever has to predict against the
+ * 3x3 cells around it, which bounds the number of events predicted per particle.
+ *
+ * Mass (r^2) and the elastic response are the ones from CollisionResponse.
+ * In StepMetrics processing events counts as the response stage and bringing the store up to date
+ * as the integrate stage.
+ */
+public class EventDrivenSimulation implements Engine {
+
+	private static final int STALE_FACTOR = 2;
+
+	private float width;
+	private float height;
+	private long stepCount;
+	private double time;
+	private ParticleStore store;
+	private CollisionResponse response;
+	private EventQueue queue;
+	//Queue size that triggers the next compaction
+	private int compactAt;
+	private double[] lastUpdate;
+	private int[] collisionCount;
+	private long events;
+	//Cell list, doubly linked per cell
+	private float cellWidth;
+	private float cellHeight;
+	private int cols;
+	private int rows;
+	private int[] cellHead;
+	private int[] cellOf;
+	private int[] next;
+	private int[] prev;
+	//Particles were added since the last prediction
+	private boolean dirty;
+	private StepMetrics metrics;
+	private ConservationTracker conservation;
+
+	public EventDrivenSimulation (float width, float height) {
+		this.width = width;
+		this.height = height;
+		this.stepCount = 0;
+		this.time = 0;
+
+		store = new ParticleStore ();
+		response = new CollisionResponse (store, width, height);
+		queue = new EventQueue (store.capacity ());
+		lastUpdate = new double[store.capacity ()];
+		collisionCount = new int[store.capacity ()];
+		cellOf = new int[store.capacity ()];
+		next = new int[store.capacity ()];
+		prev = new int[store.capacity ()];
+		cellHead = new int[0];
+		dirty = true;
+		metrics = new StepMetrics ();
+	}
+
+	@Override
+	public int addParticle (float x, float y, float dx, float dy, float r) {
+		return addParticle (x, y, dx, dy, r, 0);
+	}
+
+	@Override
+	public int addParticle (float x, float y, float dx, float dy, float r, int species) {
+		int id = store.add (x, y, dx, dy, r, species);
+		if (conservation != null) {
+			conservation.added (id);
+		}
+		dirty = true;
+		return id;
+	}
+
+	@Override
+	public ParticleStore getStore () {
+		return store;
+	}
+
+	@Override
+	public StepMetrics getMetrics () {
+		return metrics;
+	}
+
+	/*
+	 * Bounces are processed one at a time on the calling thread, a single delta covers the whole step
+	 */
+	@Override
+	public void setConservationTracking (boolean enabled) {
+		conservation = enabled ? new ConservationTracker (store) : null;
+		response.setDelta (enabled ? conservation.newDelta () : null);
+	}
+
+	@Override
+	public ConservationTracker getConservation () {
+		return conservation;
+	}
+
+	@Override
+	public float getWidth () {
+		return width;
+	}
+
+	@Override
+	public float getHeight () {
+		return height;
+	}
+
+	@Override
+	public void setTimeStep (float timeStep) {
+		store.setTimeStep (timeStep);
+	}
+
+	@Override
+	public float getTimeStep () {
+		return store.getTimeStep ();
+	}
+
+	@Override
+	public long getStepCount () {
+		return stepCount;
+	}
+
+	public double getTime () {
+		return time;
+	}
+
+	/*
+	 * Collisions (pair and wall) processed since creation, cell crossings are not counted
+	 */
+	public long getEvents () {
+		return events;
+	}
+
+	@Override
+	public void shutdown () {
+	}
+
+	/*
+	 * Simulated time is taken as stepCount whole steps of the current length
+	 */
+	@Override
+	public void reload (long stepCount) {
+		this.stepCount = stepCount;
+		this.time = stepCount * (double) store.getTimeStep ();
+		dirty = true;
+		if (conservation != null) {
+			conservation.recompute ();
+		}
+	}
+
+	@Override
+	public void step (int n) {
+		for (int i = 0; i < n; i++) {
+			step ();
+		}
+	}
+
+	@Override
+	public void step () {
+		if (dirty) {
+			rebuild ();
+		}
+
+		double end = time + store.getTimeStep ();
+		long eventsBefore = events;
+		long clock = metrics.start ();
+
+		while (!queue.isEmpty () && queue.peekTime () <= end) {
+			double t = queue.peekTime ();
+			int a = queue.peekA (), b = queue.peekB ();
+			int countA = queue.peekCountA (), countB = queue.peekCountB ();
+			queue.pop ();
+
+			if (collisionCount[a] != countA || (b >= 0 && collisionCount[b] != countB)) {
+				continue;
+			}
+
+			moveTo (a, t);
+			if (b == EventQueue.CROSS_X || b == EventQueue.CROSS_Y) {
+				crossCell (a, b);
+				//Velocity did not change, every event already predicted for it is still valid
+				predictCrossing (a, t);
+				predictNeighbours (a, t, -1);
+				continue;
+			}
+
+			events++;
+			collisionCount[a]++;
+			if (b == EventQueue.WALL_X) {
+				response.reflectX (a);
+			}
+			else if (b == EventQueue.WALL_Y) {
+				response.reflectY (a);
+			}
+			else {
+				moveTo (b, t);
+				collisionCount[b]++;
+				response.exchangeVelocities (a, b);
+			}
+
+			predict (a, t, b);
+			if (b >= 0) {
+				predict (b, t, a);
+			}
+		}
+
+		if (queue.size () > compactAt) {
+			queue.compact (collisionCount);
+			compactAt = (STALE_FACTOR + 1) * Math.max (queue.size (), store.size ());
+		}
+
+		metrics.countCollisions (events - eventsBefore);
+		clock = metrics.lap (StepMetrics.Stage.RESPONSE, clock);
+
+		time = end;
+		synchronize ();
+		metrics.lap (StepMetrics.Stage.INTEGRATE, clock);
+		metrics.endStep ();
+		stepCount++;
+		if (conservation != null) {
+			conservation.apply (response.getDelta ());
+			conservation.endStep (stepCount);
+		}
+	}
+
+	/*
+	 * Brings every position in the store up to the current time
+	 */
+	private void synchronize () {
+		for (int i = 0; i < store.size (); i++) {
+			moveTo (i, time);
+		}
+	}
+
+	private void moveTo (int p, double t) {
+		response.advance (p, (float) (t - lastUpdate[p]));
+		lastUpdate[p] = t;
+	}
+
+	/*
+	 * Sizes the cell list from the largest radius, bins every particle and predicts everything from scratch
+	 */
+	private void rebuild () {
+		int n = store.size ();
+		ensureCapacity (n);
+		float[] r = store.r;
+
+		float rMax = 0;
+		for (int i = 0; i < n; i++) {
+			rMax = Math.max (rMax, r[i]);
+		}
+		//At least a diameter, but no more than a few cells per particle when they are tiny
+		float cellSize = Math.max (2 * rMax, (float) Math.sqrt (width * height / (4.0 * Math.max (n, 1))));
+		cols = Math.max (1, (int) (width / cellSize));
+		rows = Math.max (1, (int) (height / cellSize));
+		cellWidth = width / cols;
+		cellHeight = height / rows;
+		if (cellHead.length < cols * rows) {
+			cellHead = new int[cols * rows];
+		}
+		Arrays.fill (cellHead, 0, cols * rows, -1);
+
+		for (int i = 0; i < n; i++) {
+			lastUpdate[i] = time;
+			collisionCount[i] = 0;
+			link (i, cellIndex (store.x[i], store.y[i]));
+		}
+
+		queue.clear ();
+		for (int i = 0; i < n; i++) {
+			predictWalls (i, time);
+			predictCrossing (i, time);
+			//Pairs within the neighbourhood once, from the lower id
+			predictNeighbours (i, time, -1, i);
+		}
+		compactAt = (STALE_FACTOR + 1) * Math.max (queue.size (), n);
+		dirty = false;
+	}
+
+	private void ensureCapacity (int n) {
+		if (n > lastUpdate.length) {
+			int capacity = Math.max (n, lastUpdate.length * 2);
+			lastUpdate = Arrays.copyOf (lastUpdate, capacity);
+			collisionCount = new int[capacity];
+			cellOf = new int[capacity];
+			next = new int[capacity];
+			prev = new int[capacity];
+		}
+	}
+
+	private int cellIndex (float x, float y) {
+		int col = (int) (x / cellWidth);
+		int row = (int) (y / cellHeight);
+		col = col < 0 ? 0 : (col >= cols ? cols - 1 : col);
+		row = row < 0 ? 0 : (row >= rows ? rows - 1 : row);
+		return row * cols + col;
+	}
+
+	private void link (int p, int cell) {
+		cellOf[p] = cell;
+		prev[p] = -1;
+		next[p] = cellHead[cell];
+		if (next[p] >= 0) {
+			prev[next[p]] = p;
+		}
+		cellHead[cell] = p;
+	}
+
+	private void unlink (int p) {
+		if (prev[p] >= 0) {
+			next[prev[p]] = next[p];
+		}
+		else {
+			cellHead[cellOf[p]] = next[p];
+		}
+		if (next[p] >= 0) {
+			prev[next[p]] = prev[p];
+		}
+	}
+
+	/*
+	 * Moves a particle into the next cell in its direction of travel
+	 */
+	private void crossCell (int p, int axis) {
+		int cell = cellOf[p];
+		if (axis == EventQueue.CROSS_X) {
+			cell += store.vx[p] > 0 ? 1 : -1;
+		}
+		else {
+			cell += store.vy[p] > 0 ? cols : -cols;
+		}
+		unlink (p);
+		link (p, cell);
+	}
+
+	/*
+	 * Everything for a particle whose velocity just changed, except against the particle it hit
+	 */
+	private void predict (int p, double t, int skip) {
+		predictWalls (p, t);
+		predictCrossing (p, t);
+		predictNeighbours (p, t, skip);
+	}
+
+	private void predictWalls (int p, double t) {
+		double impactX = t + response.timeToWall (store.x[p], store.vx[p], store.r[p], width);
+		double impactY = t + response.timeToWall (store.y[p], store.vy[p], store.r[p], height);
+
+		if (impactX <= impactY) {
+			if (impactX < Double.POSITIVE_INFINITY) {
+				queue.add (impactX, p, EventQueue.WALL_X, collisionCount[p], 0);
+			}
+		}
+		else {
+			queue.add (impactY, p, EventQueue.WALL_Y, collisionCount[p], 0);
+		}
+	}
+
+	/*
+	 * When the centre leaves the current cell, no crossing out of the border cells (the walls come first)
+	 */
+	private void predictCrossing (int p, double t) {
+		int cell = cellOf[p];
+		int col = cell % cols, row = cell / cols;
+		float vx = store.vx[p], vy = store.vy[p];
+		double crossX = Double.POSITIVE_INFINITY, crossY = Double.POSITIVE_INFINITY;
+
+		if (vx > 0 && col < cols - 1) {
+			crossX = Math.max (0, ((col + 1) * cellWidth - store.x[p]) / (double) vx);
+		}
+		else if (vx < 0 && col > 0) {
+			crossX = Math.max (0, (col * cellWidth - store.x[p]) / (double) vx);
+		}
+		if (vy > 0 && row < rows - 1) {
+			crossY = Math.max (0, ((row + 1) * cellHeight - store.y[p]) / (double) vy);
+		}
+		else if (vy < 0 && row > 0) {
+			crossY = Math.max (0, (row * cellHeight - store.y[p]) / (double) vy);
+		}
+
+		if (crossX <= crossY) {
+			if (crossX < Double.POSITIVE_INFINITY) {
+				queue.add (t + crossX, p, EventQueue.CROSS_X, collisionCount[p], 0);
+			}
+		}
+		else {
+			queue.add (t + crossY, p, EventQueue.CROSS_Y, collisionCount[p], 0);
+		}
+	}
+
+	private void predictNeighbours (int p, double t, int skip) {
+		predictNeighbours (p, t, skip, -1);
+	}
+
+	/*
+	 * Pair events against the 3x3 cells around p, only with ids above minId
+	 */
+	private void predictNeighbours (int p, double t, int skip, int minId) {
+		float[] x = store.x, y = store.y, vx = store.vx, vy = store.vy, r = store.r;
+		int cell = cellOf[p];
+		int col = cell % cols, row = cell / cols;
+		double px = x[p] + vx[p] * (t - lastUpdate[p]);
+		double py = y[p] + vy[p] * (t - lastUpdate[p]);
+
+		for (int rowIndex = Math.max (0, row - 1); rowIndex <= Math.min (rows - 1, row + 1); rowIndex++) {
+			for (int colIndex = Math.max (0, col - 1); colIndex <= Math.min (cols - 1, col + 1); colIndex++) {
+				for (int o = cellHead[rowIndex * cols + colIndex]; o >= 0; o = next[o]) {
+					if (o == p || o == skip || o <= minId) {
+						continue;
+					}
+
+					double dx = x[o] + vx[o] * (t - lastUpdate[o]) - px;
+					double dy = y[o] + vy[o] * (t - lastUpdate[o]) - py;
+					double impact = response.timeOfImpact (dx, dy, vx[o] - vx[p], vy[o] - vy[p], r[p] + r[o]);
+					if (impact < Double.POSITIVE_INFINITY) {
+						queue.add (t + impact, p, o, collisionCount[p], collisionCount[o]);
+					}
+				}
+			}
+		}
+	}
+}
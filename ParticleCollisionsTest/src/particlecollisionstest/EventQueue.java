@@ -0,0 +1,171 @@
+package particlecollisionstest;
+
+import java.util.Arrays;
+
+/*
+ * Binary min-heap of collision events stored in parallel primitive arrays
+ * An event is (time, a, b, countA, countB): b is another particle id or one of the WALL_ constants,
+ * the counts are the collision counts of a and b when the event was predicted so stale events can be
+ * dropped lazily when they reach the top instead of being searched for and removed.
+ * Ties are broken by (a, b) so the pop order is deterministic.
+ */
+public class EventQueue {
+
+	public static final int WALL_X = -1;
+	public static final int WALL_Y = -2;
+	//No collision, the particle moves into the next cell of a cell list
+	public static final int CROSS_X = -3;
+	public static final int CROSS_Y = -4;
+
+	private double[] time;
+	private int[] a;
+	private int[] b;
+	private int[] countA;
+	private int[] countB;
+	private int size;
+
+	public EventQueue () {
+		this (64);
+	}
+
+	public EventQueue (int capacity) {
+		capacity = Math.max (capacity, 1);
+		time = new double[capacity];
+		a = new int[capacity];
+		b = new int[capacity];
+		countA = new int[capacity];
+		countB = new int[capacity];
+		size = 0;
+	}
+
+	public int size () {
+		return size;
+	}
+
+	public boolean isEmpty () {
+		return size == 0;
+	}
+
+	public void clear () {
+		size = 0;
+	}
+
+	public void add (double t, int eventA, int eventB, int eventCountA, int eventCountB) {
+		if (size == time.length) {
+			int capacity = size * 2;
+			time = Arrays.copyOf (time, capacity);
+			a = Arrays.copyOf (a, capacity);
+			b = Arrays.copyOf (b, capacity);
+			countA = Arrays.copyOf (countA, capacity);
+			countB = Arrays.copyOf (countB, capacity);
+		}
+
+		int k = size++;
+		set (k, t, eventA, eventB, eventCountA, eventCountB);
+		siftUp (k);
+	}
+
+	//Accessors for the top event
+	public double peekTime () {return time[0];}
+
+	public int peekA () {return a[0];}
+
+	public int peekB () {return b[0];}
+
+	public int peekCountA () {return countA[0];}
+
+	public int peekCountB () {return countB[0];}
+
+	/*
+	 * Removes the top event, read it with the peek accessors first
+	 */
+	public void pop () {
+		size--;
+		if (size > 0) {
+			set (0, time[size], a[size], b[size], countA[size], countB[size]);
+			siftDown (0);
+		}
+	}
+
+	/*
+	 * Drops every event whose counts no longer match collisionCount, then restores the heap in place
+	 * Stale events far in the future would otherwise sit in the heap until their time comes. Pop order
+	 * only depends on (time, a, b), so compacting never changes which event comes next.
+	 */
+	public void compact (int[] collisionCount) {
+		int kept = 0;
+		for (int k = 0; k < size; k++) {
+			if (countA[k] == collisionCount[a[k]] && (b[k] < 0 || countB[k] == collisionCount[b[k]])) {
+				set (kept++, time[k], a[k], b[k], countA[k], countB[k]);
+			}
+		}
+		size = kept;
+		for (int k = size / 2 - 1; k >= 0; k--) {
+			siftDown (k);
+		}
+	}
+
+	private void set (int k, double t, int eventA, int eventB, int eventCountA, int eventCountB) {
+		time[k] = t;
+		a[k] = eventA;
+		b[k] = eventB;
+		countA[k] = eventCountA;
+		countB[k] = eventCountB;
+	}
+
+	private boolean less (int i, int j) {
+		if (time[i] != time[j]) {
+			return time[i] < time[j];
+		}
+		if (a[i] != a[j]) {
+			return a[i] < a[j];
+		}
+		return b[i] < b[j];
+	}
+
+	private void swap (int i, int j) {
+		double t = time[i];
+		time[i] = time[j];
+		time[j] = t;
+		int tmp = a[i];
+		a[i] = a[j];
+		a[j] = tmp;
+		tmp = b[i];
+		b[i] = b[j];
+		b[j] = tmp;
+		tmp = countA[i];
+		countA[i] = countA[j];
+		countA[j] = tmp;
+		tmp = countB[i];
+		countB[i] = countB[j];
+		countB[j] = tmp;
+	}
+
+	private void siftUp (int k) {
+		while (k > 0) {
+			int parent = (k - 1) >>> 1;
+			if (!less (k, parent)) {
+				break;
+			}
+			swap (k, parent);
+			k = parent;
+		}
+	}
+
+	private void siftDown (int k) {
+		while (true) {
+			int child = 2 * k + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && less (child + 1, child)) {
+				child++;
+			}
+			if (!less (child, k)) {
+				break;
+			}
+			swap (k, child);
+			k = child;
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package particlecollisionstest;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/*
+ * Runs the simulation without any AWT/Swing and reports step throughput
+ * Usage: HeadlessRunner [particles] [steps] [width] [height] [QUADTREE|UNIFORM_GRID|SWEEP_AND_PRUNE] [threads]
+ *                       [DISCRETE|CONTINUOUS|CONTACT_SOLVER|MULTI_RATE|EVENT_DRIVEN] [time step] [metrics log interval] [conservation interval]
+ *                       [checkpoint file] [trajectory file] [trajectory interval] [seed] [replay log]
+ * A metrics log interval above 0 turns StepMetrics on, which prints its line every that many steps.
+ * A conservation interval above 0 tracks energy and momentum, recomputed every that many steps.
+ * With a checkpoint file (- for none) the run starts from it when it exists and saves to it at the end.
+ * With a trajectory file (- for none) the timed steps record positions every trajectory interval steps (default 10).
+ * The scene comes from the seed, a random one is picked and printed when none is given.
+ * With a replay log every step is hashed (see ReplayLog): an existing log is compared against and the
+ * first differing step reported, otherwise the log is written.
+ */
+public class HeadlessRunner {
+
+	private static final int WARMUP_STEPS = 100;
+	private static final int PAIR_ROUNDS = 20;
+
+	private static com.sun.management.ThreadMXBean allocationBean;
+
+	public static void main (String[] args) throws IOException {
+		int count = args.length > 0 ? Integer.parseInt (args[0]) : 1000;
+		int steps = args.length > 1 ? Integer.parseInt (args[1]) : 1000;
+		int width = args.length > 2 ? Integer.parseInt (args[2]) : 1920;
+		int height = args.length > 3 ? Integer.parseInt (args[3]) : 1200;
+		Broadphase.Type broadphaseType = args.length > 4 ? Broadphase.Type.valueOf (args[4]) : Broadphase.Type.QUADTREE;
+
+		int threads = args.length > 5 ? Integer.parseInt (args[5]) : 1;
+		String mode = args.length > 6 ? args[6] : Simulation.CollisionMode.DISCRETE.name ();
+		float timeStep = args.length > 7 ? Float.parseFloat (args[7]) : 1;
+		int metricsInterval = args.length > 8 ? Integer.parseInt (args[8]) : 0;
+		int conservationInterval = args.length > 9 ? Integer.parseInt (args[9]) : 0;
+		File checkpointFile = args.length > 10 && !args[10].equals ("-") ? new File (args[10]) : null;
+		File trajectoryFile = args.length > 11 && !args[11].equals ("-") ? new File (args[11]) : null;
+		int trajectoryInterval = args.length > 12 ? Integer.parseInt (args[12]) : 10;
+		long seed = args.length > 13 ? Long.parseLong (args[13]) : System.nanoTime ();
+		File replayFile = args.length > 14 ? new File (args[14]) : null;
+		Checkpoint checkpoint = checkpointFile != null && checkpointFile.exists () ? Checkpoint.read (checkpointFile) : null;
+		if (checkpoint != null) {
+			width = (int) checkpoint.getWidth ();
+			height = (int) checkpoint.getHeight ();
+			timeStep = checkpoint.getTimeStep ();
+			count = checkpoint.getCount ();
+		}
+
+		Engine engine;
+		if (mode.equals ("EVENT_DRIVEN")) {
+			engine = new EventDrivenSimulation (width, height);
+		}
+		else {
+			Simulation simulation = new Simulation (width, height, broadphaseType);
+			simulation.setThreadCount (threads);
+			simulation.setCollisionMode (Simulation.CollisionMode.valueOf (mode));
+			engine = simulation;
+		}
+		engine.setTimeStep (timeStep);
+		if (metricsInterval > 0) {
+			engine.getMetrics ().setEnabled (true);
+			engine.getMetrics ().setLogInterval (metricsInterval);
+			engine.getMetrics ().register ("HeadlessRunner");
+		}
+		if (conservationInterval > 0) {
+			engine.setConservationTracking (true);
+			engine.getConservation ().setRecomputeInterval (conservationInterval);
+		}
+		SeedableRandom random = new SeedableRandom (seed);
+		if (checkpoint != null) {
+			long loadStart = System.nanoTime ();
+			checkpoint.restore (engine, random);
+			System.out.println ("Restored step " + engine.getStepCount () + " from " + checkpointFile + " in " + ((System.nanoTime () - loadStart) / 1e6) + " ms");
+		}
+		else {
+			System.out.println ("Seed: " + seed);
+			SceneGenerator.populateHalton (engine, count, random);
+		}
+		ReplayLog replay = replayFile != null ? new ReplayLog () : null;
+		if (replay != null) {
+			replay.record (engine);
+		}
+		run (engine, WARMUP_STEPS, null, replay);
+		engine.getMetrics ().reset ();
+
+		TrajectoryWriter trajectory = trajectoryFile != null ? new TrajectoryWriter (trajectoryFile, width, height, trajectoryInterval, 64) : null;
+
+		long startBytes = allocatedBytes ();
+		long startTime = System.nanoTime ();
+		run (engine, steps, trajectory, replay);
+		long timeTaken = System.nanoTime () - startTime;
+		long bytesTaken = allocatedBytes () - startBytes;
+
+		double seconds = timeTaken / 1e9;
+		System.out.println (count + " particles (" + broadphaseType + ", " + threads + " threads, " + mode + ", dt " + timeStep + "), " + steps + " steps in " + seconds + " s");
+		System.out.println ("Steps/s: " + (steps / seconds));
+		if (startBytes >= 0) {
+			System.out.println ("Allocated bytes/step: " + ((double) bytesTaken / steps));
+		}
+		ConservationTracker conservation = engine.getConservation ();
+		if (conservation != null) {
+			System.out.println ("Kinetic energy: " + conservation.getKineticEnergy () + ", momentum: (" + conservation.getMomentumX () + ", " + conservation.getMomentumY () + "), max energy drift: " + conservation.getMaxEnergyDrift ());
+		}
+
+		if (trajectory != null) {
+			long closeStart = System.nanoTime ();
+			trajectory.close ();
+			System.out.println ("Trajectory: " + trajectory.getFramesWritten () + " frames to " + trajectoryFile + ", " + trajectory.getRawBytes () + " bytes deflated to " + trajectory.getCompressedBytes () + ", closed in " + ((System.nanoTime () - closeStart) / 1e6) + " ms");
+			System.out.println ("Trajectory backpressure: " + trajectory.getStalls () + " stalls, " + (trajectory.getStallNanos () / 1e6) + " ms waiting, max " + trajectory.getMaxQueued () + " of " + trajectory.getCapacity () + " frames queued");
+		}
+
+		if (replay != null) {
+			if (replayFile.exists ()) {
+				ReplayLog reference = ReplayLog.load (replayFile);
+				long divergence = replay.firstDivergence (reference);
+				if (divergence < 0) {
+					System.out.println ("Replay: identical to " + replayFile + " over steps " + Math.max (replay.getFirstStep (), reference.getFirstStep ()) + " to " + Math.min (replay.getLastStep (), reference.getLastStep ()));
+				}
+				else {
+					System.out.println ("Replay: first difference from " + replayFile + " at step " + divergence);
+				}
+			}
+			else {
+				replay.save (replayFile);
+				System.out.println ("Replay: " + replay.size () + " step hashes written to " + replayFile);
+			}
+		}
+
+		if (checkpointFile != null) {
+			long saveStart = System.nanoTime ();
+			Checkpoint.save (engine, random, checkpointFile);
+			System.out.println ("Saved step " + engine.getStepCount () + " to " + checkpointFile + " in " + ((System.nanoTime () - saveStart) / 1e6) + " ms");
+		}
+
+		if (engine instanceof EventDrivenSimulation) {
+			System.out.println ("Collisions: " + ((EventDrivenSimulation) engine).getEvents ());
+			engine.shutdown ();
+			return;
+		}
+
+		//Broadphase on its own: the work of one step on the final state, every particle updated as a step
+		//would, so the incremental QuadTree and the rebuilt structures see the same boxes
+		Simulation simulation = (Simulation) engine;
+		Broadphase broadphase = simulation.getBroadphase ();
+		int n = simulation.getStore ().size ();
+		IntList pairs = new IntList ();
+		startTime = System.nanoTime ();
+		for (int round = 0; round < PAIR_ROUNDS; round++) {
+			pairs.clear ();
+			for (int i = 0; i < n; i++) {
+				broadphase.update (i);
+			}
+			broadphase.rebuild ();
+			broadphase.findPairs (pairs);
+		}
+		timeTaken = System.nanoTime () - startTime;
+		System.out.println ("Candidate pairs: " + (pairs.size () / 2) + ", update + rebuild + findPairs: " + (timeTaken / 1e6 / PAIR_ROUNDS) + " ms");
+
+		System.out.println ("Penetrations (oh no): " + simulation.getPenetrations ());
+
+		simulation.shutdown ();
+	}
+
+	/*
+	 * Steps one at a time when anything has to look at every step
+	 */
+	private static void run (Engine engine, int steps, TrajectoryWriter trajectory, ReplayLog replay) throws IOException {
+		if (trajectory == null && replay == null) {
+			engine.step (steps);
+			return;
+		}
+		for (int i = 0; i < steps; i++) {
+			engine.step ();
+			if (trajectory != null) {
+				trajectory.onStep (engine);
+			}
+			if (replay != null) {
+				replay.record (engine);
+			}
+		}
+	}
+
+	/*
+	 * Bytes allocated so far by the current thread, -1 when the JVM can not tell
+	 * Looking the bean up allocates, so it is looked up once and the probe itself allocates nothing
+	 */
+	public static long allocatedBytes () {
+		if (allocationBean == null) {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean ();
+			if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+				return -1;
+			}
+			allocationBean = (com.sun.management.ThreadMXBean) bean;
+		}
+		if (allocationBean.isThreadAllocatedMemorySupported () && allocationBean.isThreadAllocatedMemoryEnabled ()) {
+			return allocationBean.getThreadAllocatedBytes (Thread.currentThread ().getId ());
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,68 @@
+package particlecollisionstest;
+
+import java.util.Arrays;
+
+/*
+ * Growable list of primitive ints (particle ids) without boxing
+ */
+public class IntList {
+
+	private int[] data;
+	private int size;
+
+	public IntList () {
+		this (16);
+	}
+
+	public IntList (int capacity) {
+		data = new int[Math.max (capacity, 1)];
+		size = 0;
+	}
+
+	public void add (int value) {
+		if (size == data.length) {
+			data = Arrays.copyOf (data, size * 2);
+		}
+		data[size++] = value;
+	}
+
+	public void addAll (IntList o) {
+		if (size + o.size > data.length) {
+			data = Arrays.copyOf (data, Math.max (size + o.size, data.length * 2));
+		}
+		System.arraycopy (o.data, 0, data, size, o.size);
+		size += o.size;
+	}
+
+	public int get (int index) {
+		return data[index];
+	}
+
+	/*
+	 * Removes the first occurrence by moving the last entry into its place, order is not kept
+	 */
+	public boolean removeValue (int value) {
+		for (int i = 0; i < size; i++) {
+			if (data[i] == value) {
+				data[i] = data[--size];
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Drops every entry from index size on, for using the list as a stack
+	 */
+	public void truncate (int size) {
+		this.size = Math.min (this.size, size);
+	}
+
+	public int size () {
+		return size;
+	}
+
+	public void clear () {
+		size = 0;
+	}
+}
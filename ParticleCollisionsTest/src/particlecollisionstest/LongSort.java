@@ -0,0 +1,113 @@
+package particlecollisionstest;
+
+/*
+ * In place sort of a range of longs, used for the pair keys of every step
+ * Arrays.sort may allocate run and merge buffers for partly sorted input, which pair lists often are,
+ * this never allocates. Introsort: median of three quicksort, insertion sort for short ranges and
+ * heapsort once the recursion gets too deep, so the worst case stays n log n.
+ */
+public class LongSort {
+
+	private static final int INSERTION_LIMIT = 24;
+
+	private LongSort () {
+	}
+
+	/*
+	 * Sorts a[from, to) ascending
+	 */
+	public static void sort (long[] a, int from, int to) {
+		int depth = 2 * (32 - Integer.numberOfLeadingZeros (Math.max (to - from, 1)));
+		sort (a, from, to - 1, depth);
+	}
+
+	//Recurses into the smaller half only, so the stack stays logarithmic
+	private static void sort (long[] a, int lo, int hi, int depth) {
+		while (hi - lo >= INSERTION_LIMIT) {
+			if (depth-- == 0) {
+				heapSort (a, lo, hi);
+				return;
+			}
+
+			int mid = (lo + hi) >>> 1;
+			if (a[mid] < a[lo]) {
+				swap (a, mid, lo);
+			}
+			if (a[hi] < a[lo]) {
+				swap (a, hi, lo);
+			}
+			if (a[hi] < a[mid]) {
+				swap (a, hi, mid);
+			}
+			long pivot = a[mid];
+
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (a[i] < pivot) {
+					i++;
+				}
+				while (a[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap (a, i++, j--);
+				}
+			}
+
+			if (j - lo < hi - i) {
+				sort (a, lo, j, depth);
+				lo = i;
+			}
+			else {
+				sort (a, i, hi, depth);
+				hi = j;
+			}
+		}
+		insertionSort (a, lo, hi);
+	}
+
+	private static void insertionSort (long[] a, int lo, int hi) {
+		for (int i = lo + 1; i <= hi; i++) {
+			long value = a[i];
+			int j = i - 1;
+			while (j >= lo && a[j] > value) {
+				a[j + 1] = a[j];
+				j--;
+			}
+			a[j + 1] = value;
+		}
+	}
+
+	private static void heapSort (long[] a, int lo, int hi) {
+		int n = hi - lo + 1;
+		for (int i = n / 2 - 1; i >= 0; i--) {
+			siftDown (a, lo, i, n);
+		}
+		for (int end = n - 1; end > 0; end--) {
+			swap (a, lo, lo + end);
+			siftDown (a, lo, 0, end);
+		}
+	}
+
+	private static void siftDown (long[] a, int lo, int i, int n) {
+		long value = a[lo + i];
+		while (2 * i + 1 < n) {
+			int child = 2 * i + 1;
+			if (child + 1 < n && a[lo + child + 1] > a[lo + child]) {
+				child++;
+			}
+			if (a[lo + child] <= value) {
+				break;
+			}
+			a[lo + i] = a[lo + child];
+			i = child;
+		}
+		a[lo + i] = value;
+	}
+
+	private static void swap (long[] a, int i, int j) {
+		long t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+}
@@ -0,0 +1,132 @@
+package particlecollisionstest;
+
+import java.util.Arrays;
+
+/*
+ * Z-order (Morton) sort of particle ids by position
+ * Positions are quantized to BITS bits per axis over the world and interleaved (x in the even bits,
+ * y in the odd bits), then ids are sorted by code with an LSD radix sort, 8 bits per pass.
+ * The sort is stable and starts from id order, so equal codes stay in id order and the result is deterministic.
+ * Every buffer is kept between calls.
+ */
+public class MortonOrder {
+
+	public static final int BITS = 16;
+	private static final int RADIX = 256;
+
+	private int[] ids;
+	private int[] codes;
+	private int[] scratchIds;
+	private int[] scratchCodes;
+	private int[] counts;
+	private int size;
+
+	public MortonOrder () {
+		this (1024);
+	}
+
+	public MortonOrder (int capacity) {
+		capacity = Math.max (capacity, 1);
+		ids = new int[capacity];
+		codes = new int[capacity];
+		scratchIds = new int[capacity];
+		scratchCodes = new int[capacity];
+		counts = new int[RADIX];
+		size = 0;
+	}
+
+	/*
+	 * Sorts every particle of the store by the code of its centre
+	 */
+	public void compute (ParticleStore store, float width, float height) {
+		int n = store.size ();
+		ensureCapacity (n);
+		float[] x = store.x, y = store.y;
+
+		for (int i = 0; i < n; i++) {
+			ids[i] = i;
+			codes[i] = encode (x[i], y[i], width, height);
+		}
+		size = n;
+		radixSort ();
+	}
+
+	public int size () {
+		return size;
+	}
+
+	/*
+	 * Ids in Z-order, only [0, size ()) is valid
+	 */
+	public int[] getIds () {
+		return ids;
+	}
+
+	/*
+	 * Codes matching getIds ()
+	 */
+	public int[] getCodes () {
+		return codes;
+	}
+
+	public static int encode (float x, float y, float width, float height) {
+		int max = (1 << BITS) - 1;
+		int qx = (int) (x / width * (1 << BITS));
+		int qy = (int) (y / height * (1 << BITS));
+		qx = qx < 0 ? 0 : (qx > max ? max : qx);
+		qy = qy < 0 ? 0 : (qy > max ? max : qy);
+
+		return interleave (qx) | (interleave (qy) << 1);
+	}
+
+	/*
+	 * Spreads the low 16 bits of value over the even bits
+	 */
+	public static int interleave (int value) {
+		value &= 0xffff;
+		value = (value | (value << 8)) & 0x00ff00ff;
+		value = (value | (value << 4)) & 0x0f0f0f0f;
+		value = (value | (value << 2)) & 0x33333333;
+		value = (value | (value << 1)) & 0x55555555;
+		return value;
+	}
+
+	private void ensureCapacity (int n) {
+		if (n > ids.length) {
+			int capacity = Math.max (n, ids.length * 2);
+			ids = new int[capacity];
+			codes = new int[capacity];
+			scratchIds = new int[capacity];
+			scratchCodes = new int[capacity];
+		}
+	}
+
+	private void radixSort () {
+		for (int shift = 0; shift < 32; shift += 8) {
+			Arrays.fill (counts, 0);
+			for (int i = 0; i < size; i++) {
+				counts[(codes[i] >>> shift) & (RADIX - 1)]++;
+			}
+
+			int sum = 0;
+			for (int b = 0; b < RADIX; b++) {
+				int count = counts[b];
+				counts[b] = sum;
+				sum += count;
+			}
+
+			for (int i = 0; i < size; i++) {
+				int slot = counts[(codes[i] >>> shift) & (RADIX - 1)]++;
+				scratchIds[slot] = ids[i];
+				scratchCodes[slot] = codes[i];
+			}
+
+			int[] swap = ids;
+			ids = scratchIds;
+			scratchIds = swap;
+			swap = codes;
+			codes = scratchCodes;
+			scratchCodes = swap;
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package particlecollisionstest;
+
+import java.util.Arrays;
+
+/*
+ * Multi-rate stepping, every particle moves in power-of-two fractions of the step that suit its speed
+ * A step is split into 2^maxLevel ticks. A particle on level k moves in windows of 2^(maxLevel - k)
+ * ticks, the lowest level whose window moves it no more than margin times its radius, so slow particles
+ * take the whole step at once and only the few fast ones take many short moves. At every tick only the
+ * particles whose window ends there do any work:
+ * 1) level       pick the level again, a coarser window has to start on its own boundary
+ * 2) integrate   move over the window and bounce off the walls
+ * 3) broadphase  update with the box swept back over the window (see ParticleStore.setSweep),
+ *                then rebuild so a broadphase that defers its updates is current for the search
+ * 4) candidates  one bulk findPairs when many particles are due, else a query per due particle,
+ *                keeping pairs with a due particle whose window boxes overlap, sorted by pair key
+ * 5) resolve     the longer window of a pair is cut to end where the shorter one ends, so a slow
+ *                particle next to a fast one drops to its level until they part, then a pair still
+ *                closing in gets the same response as in the discrete pipeline over the part of the
+ *                windows they share
+ * The margin stands in for the spacing to the neighbours, which the cuts take care of where it is
+ * smaller. All windows end with the step, so every position is valid after it.
+ *
+ * The broadphase box of a particle is its window box at every candidate search: a cut or a response
+ * updates it again and the rebuild before the search applies whatever was deferred, a bulk QuadTree
+ * ignores updates until then. So every broadphase gives the same candidates and the result does not
+ * depend on which one is used.
+ *
+ * Pays off with a few fast particles among many slow ones, dense scenes favour DISCRETE since the cuts
+ * spread from neighbour to neighbour. Best with the incremental QuadTree, grids, sweep and prune and a
+ * bulk QuadTree rebuild every box on every tick that moves anything. Runs on the calling thread only,
+ * and the stage timings hold one sample per busy tick instead of one per step.
+ */
+public class MultiRateStepper {
+
+	//One bulk findPairs once at least 1 / BULK_FRACTION of the particles are due, a query each below
+	private static final int BULK_FRACTION = 32;
+
+	private ParticleStore store;
+	private Broadphase broadphase;
+	private CollisionResponse response;
+	private StepMetrics metrics;
+	private int maxLevel;
+	private float margin;
+	//Current window of every particle in ticks, [startTick, endTick)
+	private int[] startTick;
+	private int[] endTick;
+	private float[] sweep;
+	//Particles whose window ends at a tick, entries whose window changed since are skipped
+	private IntList[] due;
+	private IntList active;
+	private IntList pairs;
+	private IntList candidates;
+	private long[] keys;
+	private QuadTree.QuadTreeQuery query;
+	private QuadTree.QuadTreeQuery other;
+	private long penetrations;
+	private long moves;
+
+	public MultiRateStepper (ParticleStore store, Broadphase broadphase, CollisionResponse response, StepMetrics metrics) {
+		this.store = store;
+		this.broadphase = broadphase;
+		this.response = response;
+		this.metrics = metrics;
+		this.margin = 0.5f;
+		int capacity = store.capacity ();
+		this.startTick = new int[capacity];
+		this.endTick = new int[capacity];
+		this.sweep = new float[capacity];
+		this.active = new IntList ();
+		this.pairs = new IntList ();
+		this.candidates = new IntList ();
+		this.keys = new long[16];
+		this.query = new QuadTree.QuadTreeQuery ();
+		this.other = new QuadTree.QuadTreeQuery ();
+		setMaxLevel (2);
+	}
+
+	/*
+	 * The fastest particles move 2^maxLevel times per step
+	 */
+	public final void setMaxLevel (int maxLevel) {
+		this.maxLevel = Math.max (0, Math.min (16, maxLevel));
+		this.due = new IntList[(1 << this.maxLevel) + 1];
+		for (int s = 0; s < due.length; s++) {
+			due[s] = new IntList ();
+		}
+	}
+
+	public int getMaxLevel () {
+		return maxLevel;
+	}
+
+	/*
+	 * How far a particle may move in one window, in radii
+	 */
+	public void setMargin (float margin) {
+		this.margin = margin;
+	}
+
+	public float getMargin () {
+		return margin;
+	}
+
+	/*
+	 * Pairs still overlapping after their response since creation
+	 */
+	public long getPenetrations () {
+		return penetrations;
+	}
+
+	/*
+	 * Windows moved since creation, a plain step would have moved every particle once per step
+	 */
+	public long getMoves () {
+		return moves;
+	}
+
+	public void step () {
+		int n = store.size ();
+		int ticks = 1 << maxLevel;
+		float tick = store.getTimeStep () / ticks;
+		ensureCapacity (n);
+
+		//Everything is in step at the start
+		for (IntList list : due) {
+			list.clear ();
+		}
+		for (int i = 0; i < n; i++) {
+			endTick[i] = 0;
+			due[0].add (i);
+		}
+
+		store.setSweep (sweep);
+		long candidateCount = 0, collisions = 0, stepPenetrations = 0;
+		for (int s = 0; s < ticks; s++) {
+			if (due[s].size () == 0) {
+				continue;
+			}
+
+			long time = metrics.start ();
+			startWindows (due[s], s, ticks);
+
+			for (int k = 0; k < active.size (); k++) {
+				int i = active.get (k);
+				float t = (endTick[i] - s) * tick;
+				response.advance (i, t);
+				response.updateBoundryCheck (i, t);
+				due[endTick[i]].add (i);
+			}
+			moves += active.size ();
+			time = metrics.lap (StepMetrics.Stage.INTEGRATE, time);
+
+			for (int k = 0; k < active.size (); k++) {
+				broadphase.update (active.get (k));
+			}
+			broadphase.rebuild ();
+			time = metrics.lap (StepMetrics.Stage.TREE_UPDATE, time);
+
+			int keyCount = findCandidates (s, n);
+			candidateCount += keyCount;
+			time = metrics.lap (StepMetrics.Stage.QUERY, time);
+
+			for (int c = 0; c < keyCount; c++) {
+				int p = (int) (keys[c] >>> 32), o = (int) keys[c];
+				//Both end where the shorter window ends, so they are compared at the same time
+				int e = Math.min (endTick[p], endTick[o]);
+				cut (p, e, tick, ticks);
+				cut (o, e, tick, ticks);
+				float t = (e - s) * tick;
+				if (response.collides (p, o) && approaching (p, o, t)) {
+					collisions++;
+					if (resolve (p, o, t)) {
+						stepPenetrations++;
+					}
+				}
+			}
+			metrics.lap (StepMetrics.Stage.RESPONSE, time);
+		}
+		store.setSweep (null);
+
+		penetrations += stepPenetrations;
+		metrics.countCandidatePairs (candidateCount);
+		metrics.countCollisions (collisions);
+		metrics.countPenetrations (stepPenetrations);
+	}
+
+	private void ensureCapacity (int n) {
+		if (n > startTick.length) {
+			int capacity = Math.max (n, startTick.length * 2);
+			startTick = new int[capacity];
+			endTick = new int[capacity];
+			sweep = new float[capacity];
+		}
+	}
+
+	/*
+	 * Levels and window boxes of every particle due at tick s, collected into active
+	 */
+	private void startWindows (IntList now, int s, int ticks) {
+		float[] vx = store.vx, vy = store.vy, r = store.r;
+		float dt = store.getTimeStep ();
+		active.clear ();
+
+		for (int k = 0; k < now.size (); k++) {
+			int i = now.get (k);
+			if (endTick[i] != s) {
+				//Listed again after its window was cut short, or listed twice for this tick
+				continue;
+			}
+
+			float reach = (float) Math.sqrt (vx[i] * vx[i] + vy[i] * vy[i]) * dt, limit = margin * r[i];
+			int level = 0;
+			while (level < maxLevel && reach > limit) {
+				reach *= 0.5f;
+				level++;
+			}
+			while ((s & ((1 << (maxLevel - level)) - 1)) != 0) {
+				level++;
+			}
+
+			startTick[i] = s;
+			endTick[i] = s + (1 << (maxLevel - level));
+			sweep[i] = -(float) (endTick[i] - s) / ticks;
+			active.add (i);
+		}
+	}
+
+	/*
+	 * Sorted, unique pair keys with at least one particle that started a window at tick s and
+	 * overlapping window boxes
+	 */
+	private int findCandidates (int s, int n) {
+		pairs.clear ();
+		if (BULK_FRACTION * active.size () >= n) {
+			broadphase.findPairs (pairs);
+		}
+		else {
+			for (int k = 0; k < active.size (); k++) {
+				int p = active.get (k);
+				store.getQuery (p, query);
+				candidates.clear ();
+				broadphase.query (query, candidates);
+				for (int j = 0; j < candidates.size (); j++) {
+					int o = candidates.get (j);
+					if (o != p) {
+						pairs.add (Math.min (p, o));
+						pairs.add (Math.max (p, o));
+					}
+				}
+			}
+		}
+
+		int count = 0;
+		for (int k = 0; k < pairs.size (); k += 2) {
+			int p = pairs.get (k), o = pairs.get (k + 1);
+			if ((startTick[p] == s || startTick[o] == s) && store.getQuery (p, query).intersects (store.getQuery (o, other))) {
+				if (count == keys.length) {
+					keys = Arrays.copyOf (keys, count * 2);
+				}
+				keys[count++] = ((long) p << 32) | o;
+			}
+		}
+
+		//Same order for every broadphase, pairs found from both ends only once
+		LongSort.sort (keys, 0, count);
+		int unique = 0;
+		for (int k = 0; k < count; k++) {
+			if (unique == 0 || keys[k] != keys[unique - 1]) {
+				keys[unique++] = keys[k];
+			}
+		}
+		return unique;
+	}
+
+	/*
+	 * Ends the window of p at tick e if it went on past it
+	 */
+	private void cut (int p, int e, float tick, int ticks) {
+		if (endTick[p] > e) {
+			response.advance (p, -(endTick[p] - e) * tick);
+			endTick[p] = e;
+			sweep[p] = -(float) (e - startTick[p]) / ticks;
+			broadphase.update (p);
+			due[e].add (p);
+		}
+	}
+
+	/*
+	 * Whether p and o were closing in t ago, where resolve gives them new velocities
+	 * A pair already moving apart is left alone, exchanging its velocities would turn it back into itself,
+	 * the same test as CollisionResponse.timeOfImpact
+	 */
+	private boolean approaching (int p, int o, float t) {
+		float[] x = store.x, y = store.y, vx = store.vx, vy = store.vy;
+		float dx = (x[o] - vx[o] * t) - (x[p] - vx[p] * t);
+		float dy = (y[o] - vy[o] * t) - (y[p] - vy[p] * t);
+
+		return dx * (vx[o] - vx[p]) + dy * (vy[o] - vy[p]) < 0;
+	}
+
+	/*
+	 * Elastic response over the last t of both windows, returns true if they still overlap afterwards ("oh no")
+	 */
+	private boolean resolve (int p, int o, float t) {
+		response.advance (p, -t);
+		response.advance (o, -t);
+
+		response.exchangeVelocities (p, o);
+
+		response.advance (p, t);
+		response.advance (o, t);
+		response.updateBoundryCheck (p, t);
+		response.updateBoundryCheck (o, t);
+		broadphase.update (p);
+		broadphase.update (o);
+		return response.collides (p, o);
+	}
+}
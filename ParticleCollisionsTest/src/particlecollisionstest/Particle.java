@@ -1,103 +1,103 @@
 package particlecollisionstest;
 
-public class Particle extends QuadTree.QuadTreeObject {
-	private float x;
-	private float y;
-	private Vector2D v;
+/*
+ * Lightweight view of a single particle inside a ParticleStore
+ * Convenient for setup and debugging, the step loop works on the store columns directly
+ */
+public class Particle {
+	private ParticleStore store;
+	private int id;
 	private Vector2D vBias;
 	private boolean hasBias;
-	private float r;
-	
-	public Particle (float x, float y, float dx, float dy, float r) {
-		this.setPosition (x, y);
-		this.setVelocity (dx, dy);
+
+	public Particle (ParticleStore store, int id) {
+		this.store = store;
+		this.id = id;
 		this.setBias (new Vector2D (0, 0));
 		this.hasBias = false;
-		this.r = r;
 	}
-	
+
+	public int getId () {
+		return id;
+	}
+
 	public boolean collidesWith (Particle p) {
 		float deltaX = this.getX () - p.getX ();
 		float deltaY = this.getY () - p.getY ();
 		float minDist = this.getR () + p.getR ();
 		float distance = deltaX * deltaX + deltaY * deltaY;
-		
+
 		if (distance <= (minDist * minDist)) {
 			return true;
 		}
-		
+
 		return false;
 	}
-	
+
 	public final void setBias (Vector2D vBias) {
 		this.hasBias = true;
 		this.vBias = vBias;
 	}
-	
+
 	public Vector2D getBias () {
 		this.hasBias = false;
 		return this.vBias;
 	}
-	
+
 	public boolean hasBias () {
 		return this.hasBias;
 }
-	
+
 	@Override
 	public String toString () {
 		return "(x, y) = (" + getX() + ", " + getY() + ") r = " + getR();
 	}
-	
-	@Override
-	public boolean completelyInBoundry (QuadTreeNode node) {
-		if ((getX() - getR() >= node.getX () && getX() + getR() <= node.getX () + node.getW ()) &&
-			(getY() - getR() >= node.getY () && getY() + getR() <= node.getY () + node.getH ())) {
-			return true;
-		}
-		
-		return false;
-	}
-	
-	@Override
+
 	public QuadTree.QuadTreeQuery getQuery () {
+		float x = getX (), y = getY (), r = getR ();
+		float dx = store.vx[id], dy = store.vy[id];
+
 		return (new QuadTree.QuadTreeQuery (
-			x + (v.dx < 0 ? v.dx : 0) - r, 
-			y + (v.dy < 0 ? v.dy : 0) - r, 
-			2 * r + (v.dx < 0 ? -v.dx : v.dx), 
-			2 * r + (v.dy < 0 ? -v.dy : v.dy)));
+			x + (dx < 0 ? dx : 0) - r,
+			y + (dy < 0 ? dy : 0) - r,
+			2 * r + (dx < 0 ? -dx : dx),
+			2 * r + (dy < 0 ? -dy : dy)));
 	}
-	
+
 	public final void setPosition (float x, float y) {
-		this.x = x;
-		this.y = y;
+		store.x[id] = x;
+		store.y[id] = y;
 	}
-	
+
 	public final void setVelocity (float dx, float dy) {
-		this.v = new Vector2D (dx, dy);
+		store.vx[id] = dx;
+		store.vy[id] = dy;
 	}
-	
+
 	public final void setVelocity (Vector2D v) {
-		this.v = v;
+		setVelocity (v.dx, v.dy);
 	}
-	
+
+	/*
+	 * Returns a copy, changes to it are not written back
+	 */
 	public Vector2D getVelocity () {
-		return this.v;
+		return new Vector2D (store.vx[id], store.vy[id]);
 	}
-	
+
 	public float getNewX () {
-		return getX () + v.dx;
+		return getX () + store.vx[id];
 	}
-	
+
 	public float getNewY () {
-		return getY () + v.dy;
+		return getY () + store.vy[id];
 	}
-	
-	@Override
-	public float getX () {return x;}
-	
-	@Override
-	public float getY () {return y;}
-	
-	public float getR () {return r;}
-}
 
+	public float getX () {return store.x[id];}
+
+	public float getY () {return store.y[id];}
+
+	public float getR () {return store.r[id];}
+
+	public float getMass () {return store.mass[id];}
+}
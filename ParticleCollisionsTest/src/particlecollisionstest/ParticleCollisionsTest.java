@@ -1,10 +1,13 @@
 package particlecollisionstest;
 
+import java.io.File;
 
 
 public class ParticleCollisionsTest {
 	
 	public static void main (String[] args) {
-		new TestFrame ();
+		//Optional checkpoint file (- for none), resumed from when it exists and saved to on close, and scene seed
+		File checkpointFile = args.length > 0 && !args[0].equals ("-") ? new File (args[0]) : null;
+		new TestFrame (checkpointFile, args.length > 1 ? Long.parseLong (args[1]) : System.nanoTime ());
 	}
 }
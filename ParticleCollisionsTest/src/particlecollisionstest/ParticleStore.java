@@ -0,0 +1,173 @@
+package particlecollisionstest;
+
+import java.util.Arrays;
+
+/*
+ * Structure-of-arrays particle storage
+ * Every particle is an int id indexing into contiguous float columns so the step loop
+ * walks memory linearly and never allocates.
+ * Columns are public for the hot loops, only [0, size ()) is valid.
+ */
+public class ParticleStore {
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	public float[] x;
+	public float[] y;
+	public float[] vx;
+	public float[] vy;
+	public float[] r;
+	public float[] mass;
+	//Free for the caller to label particles with, 0 by default
+	public int[] species;
+	private int size;
+	//Length of one step, velocities are per unit of time
+	private float timeStep = 1;
+	//Per particle multiple of the time step boxes are swept over, null for one step each
+	private float[] sweep;
+	private float[] scratch;
+	private int[] intScratch;
+
+	public ParticleStore () {
+		this (DEFAULT_CAPACITY);
+	}
+
+	public ParticleStore (int capacity) {
+		capacity = Math.max (capacity, 1);
+		x = new float[capacity];
+		y = new float[capacity];
+		vx = new float[capacity];
+		vy = new float[capacity];
+		r = new float[capacity];
+		mass = new float[capacity];
+		species = new int[capacity];
+		size = 0;
+	}
+
+	public int size () {
+		return size;
+	}
+
+	public int capacity () {
+		return x.length;
+	}
+
+	/*
+	 * Appends a particle and returns its id
+	 * Mass follows the r^2 convention used by the collision response
+	 */
+	public int add (float x, float y, float dx, float dy, float r) {
+		return add (x, y, dx, dy, r, 0);
+	}
+
+	public int add (float x, float y, float dx, float dy, float r, int species) {
+		if (size == this.x.length) {
+			grow (size * 2);
+		}
+
+		int id = size++;
+		this.x[id] = x;
+		this.y[id] = y;
+		this.vx[id] = dx;
+		this.vy[id] = dy;
+		this.r[id] = r;
+		this.mass[id] = r * r;
+		this.species[id] = species;
+
+		return id;
+	}
+
+	public float getTimeStep () {
+		return timeStep;
+	}
+
+	public void setTimeStep (float timeStep) {
+		this.timeStep = timeStep;
+	}
+
+	/*
+	 * Particles moving for other lengths than one step (see MultiRateStepper and ContinuousStepper),
+	 * sweep[id] is the fraction of a step the box of id covers, negative for a box swept back to where id
+	 * came from, null goes back to one step for everyone
+	 */
+	public void setSweep (float[] sweep) {
+		this.sweep = sweep;
+	}
+
+	/*
+	 * Writes the bounding box of the particle swept by one step into a reusable query
+	 */
+	public QuadTree.QuadTreeQuery getQuery (int id, QuadTree.QuadTreeQuery query) {
+		float x = this.x[id], y = this.y[id], r = this.r[id];
+		float t = sweep == null ? timeStep : timeStep * sweep[id];
+		float dx = this.vx[id] * t, dy = this.vy[id] * t;
+
+		return query.set (
+			x + (dx < 0 ? dx : 0) - r,
+			y + (dy < 0 ? dy : 0) - r,
+			2 * r + (dx < 0 ? -dx : dx),
+			2 * r + (dy < 0 ? -dy : dy));
+	}
+
+	/*
+	 * Rearranges every column so that particle k becomes the one that was order[k]
+	 * Columns are swapped with a single scratch array, nothing is allocated after the first call
+	 */
+	public void permute (int[] order) {
+		if (scratch == null || scratch.length < x.length) {
+			scratch = new float[x.length];
+			intScratch = new int[x.length];
+		}
+		x = permute (x, order);
+		y = permute (y, order);
+		vx = permute (vx, order);
+		vy = permute (vy, order);
+		r = permute (r, order);
+		mass = permute (mass, order);
+
+		int[] target = intScratch;
+		for (int k = 0; k < size; k++) {
+			target[k] = species[order[k]];
+		}
+		intScratch = species;
+		species = target;
+	}
+
+	private float[] permute (float[] column, int[] order) {
+		float[] target = scratch;
+		for (int k = 0; k < size; k++) {
+			target[k] = column[order[k]];
+		}
+		scratch = column;
+		return target;
+	}
+
+	/*
+	 * For filling the columns directly (see Checkpoint), particles beyond the old size are whatever the
+	 * columns hold
+	 */
+	public void setSize (int size) {
+		ensureCapacity (size);
+		this.size = size;
+	}
+
+	public void ensureCapacity (int capacity) {
+		if (capacity > x.length) {
+			grow (Math.max (capacity, x.length * 2));
+		}
+	}
+
+	private void grow (int capacity) {
+		x = Arrays.copyOf (x, capacity);
+		y = Arrays.copyOf (y, capacity);
+		vx = Arrays.copyOf (vx, capacity);
+		vy = Arrays.copyOf (vy, capacity);
+		r = Arrays.copyOf (r, capacity);
+		mass = Arrays.copyOf (mass, capacity);
+		species = Arrays.copyOf (species, capacity);
+	}
+
+	public void clear () {
+		size = 0;
+	}
+}
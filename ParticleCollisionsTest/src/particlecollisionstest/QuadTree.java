@@ -3,15 +3,99 @@ package particlecollisionstest;
 import java.awt.Shape;
 import java.awt.geom.Line2D;
 import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * QuadTree over particle ids
+ * Bounds of every object are read straight from the ParticleStore columns
+ *
+ * Nodes are int indices into flat arrays instead of objects. Node 0 is the root, the four children of a
+ * node are allocated together as one block of consecutive indices and collapsed blocks go on a free list,
+ * so a moving scene recycles the same nodes instead of allocating new ones every split.
+ *
+ * Every node holds a bucket of objects, an intrusive linked list through objNext/objPrev.
+ * An object sits in the deepest node its swept box fits in, a leaf splits once it holds more than
+ * capacity objects (unless it is at maxDepth) and a subtree collapses back into one leaf once it
+ * holds capacity / 2 or fewer.
+ * Objects whose box leaves the world are kept in an overflow list that every query reports.
+ *
+ * When most objects change node in a step it is cheaper to throw the tree away and build it again from a
+ * Morton sort (rebuildFromMorton), the RebuildPolicy decides which one a step uses.
+ */
+public class QuadTree implements Broadphase {
+
+	public static final int EMPTY = -1;
+	public static final int DEFAULT_CAPACITY = 16;
+	public static final int DEFAULT_MAX_DEPTH = 10;
+	//Rebuild from scratch once more than this fraction of objects changed node in a step
+	public static final float DEFAULT_REBUILD_THRESHOLD = 0.5f;
+	//Node of objects kept in the overflow list
+	private static final int OVERFLOW = -2;
+	private static final int ROOT = 0;
 
-public class QuadTree<T extends QuadTree.QuadTreeObject> {
-
-	private boolean debugInsert = false;
-	private boolean debugDelete = false;
-	private boolean debugUpdate = false;
 	private float w;
 	private float h;
-	public QuadTreeNode treeHead;
+	private int capacity;
+	private int maxDepth;
+	private ParticleStore store;
+	private IntList overflow;
+	private QuadTreeQuery scratchQuery;
+	private QuadTreeQuery pairQuery;
+	private RebuildPolicy rebuildPolicy;
+	private float rebuildThreshold;
+	private boolean bulkStep;
+	private int relocations;
+	private MortonOrder morton;
+	private float[] slotMinX;
+	private float[] slotMinY;
+	private float[] slotMaxX;
+	private float[] slotMaxY;
+	//Traversal scratch
+	private IntList active;
+	private IntList pairCandidates;
+	private float[] boxMinX;
+	private float[] boxMinY;
+	private float[] boxMaxX;
+	private float[] boxMaxY;
+
+	//Node pool
+	private float[] nodeX;
+	private float[] nodeY;
+	private float[] nodeW;
+	private float[] nodeH;
+	//First of 4 consecutive children, EMPTY for a leaf. Links the free list for free blocks
+	private int[] firstChild;
+	private int[] parent;
+	private int[] depth;
+	private int[] nodeFirstObj;
+	private int[] nodeObjCount;
+	//Objects in the node and everything below it
+	private int[] subtreeCount;
+	private int nodeCount;
+	private int freeBlock;
+
+	//Per object
+	private int[] leafOf;
+	private int[] objNext;
+	private int[] objPrev;
+
+	/*
+	 * INCREMENTAL  every update moves the object through the tree
+	 * BULK         updates are ignored and rebuild constructs the tree from a Morton sort
+	 * ADAPTIVE     picks one of the two for the next step from how many objects changed node in the last one
+	 */
+	public enum RebuildPolicy {
+		INCREMENTAL,
+		BULK,
+		ADAPTIVE
+	}
+
+	/*
+	 * Receives query hits one id at a time, see query (QuadTreeQuery, Visitor)
+	 */
+	public interface Visitor {
+		public void visit (int id);
+	}
 
 	public static class QuadTreeQuery {
 
@@ -19,286 +103,780 @@ public class QuadTree<T extends QuadTree.QuadTreeObject> {
 		public float y;
 		public float w;
 		public float h;
+		//Stack of the tree walks made with this query, it is the caller's own so walks on different
+		//threads never share one, a query must not be used by two threads at once
+		int[] stack = new int[64];
+
+		public QuadTreeQuery () {
+		}
 
 		public QuadTreeQuery (float x, float y, float w, float h) {
+			set (x, y, w, h);
+		}
+
+		public QuadTreeQuery set (float x, float y, float w, float h) {
 			this.x = x;
 			this.y = y;
 			this.w = w;
 			this.h = h;
+			return this;
 		}
 
-		private boolean valueInRange (float value, float min, float max) {
-			return (value >= min) && (value <= max);
+		public boolean intersects (QuadTreeQuery o) {
+			return this.x <= o.x + o.w && o.x <= this.x + this.w &&
+				   this.y <= o.y + o.h && o.y <= this.y + this.h;
 		}
 
-		public boolean intersects (QuadTreeNode node) {
-			boolean xOverlap = valueInRange (this.x, node.getX (), node.getX () + node.getW ())
-							   || valueInRange (node.getX (), this.x, this.x + this.w);
+		public boolean intersects (float x, float y, float w, float h) {
+			return this.x <= x + w && x <= this.x + this.w &&
+				   this.y <= y + h && y <= this.y + this.h;
+		}
+	}
+
+	public QuadTree (ParticleStore store, float w, float h) {
+		this (store, w, h, DEFAULT_CAPACITY, DEFAULT_MAX_DEPTH);
+	}
+
+	/*
+	 * capacity  objects a leaf holds before it splits
+	 * maxDepth  depth below which leaves never split, the root is depth 0
+	 */
+	public QuadTree (ParticleStore store, float w, float h, int capacity, int maxDepth) {
+		this.store = store;
+		this.w = w;
+		this.h = h;
+		this.capacity = Math.max (1, capacity);
+		//Bulk builds split on Morton code bits
+		this.maxDepth = Math.max (0, Math.min (maxDepth, MortonOrder.BITS));
+		this.rebuildPolicy = RebuildPolicy.ADAPTIVE;
+		this.rebuildThreshold = DEFAULT_REBUILD_THRESHOLD;
+		this.bulkStep = false;
+		this.morton = new MortonOrder (store.capacity ());
+		this.slotMinX = new float[0];
+		this.slotMinY = new float[0];
+		this.slotMaxX = new float[0];
+		this.slotMaxY = new float[0];
+		this.overflow = new IntList ();
+		this.scratchQuery = new QuadTreeQuery ();
+		this.pairQuery = new QuadTreeQuery ();
+		this.active = new IntList ();
+		this.pairCandidates = new IntList ();
+		this.boxMinX = new float[0];
+		this.boxMinY = new float[0];
+		this.boxMaxX = new float[0];
+		this.boxMaxY = new float[0];
+
+		int objects = store.capacity ();
+		leafOf = new int[objects];
+		objNext = new int[objects];
+		objPrev = new int[objects];
+
+		int nodes = 1 + 4 * Math.max (1, objects / this.capacity);
+		nodeX = new float[nodes];
+		nodeY = new float[nodes];
+		nodeW = new float[nodes];
+		nodeH = new float[nodes];
+		firstChild = new int[nodes];
+		parent = new int[nodes];
+		depth = new int[nodes];
+		nodeFirstObj = new int[nodes];
+		nodeObjCount = new int[nodes];
+		subtreeCount = new int[nodes];
+		createTree ();
+	}
+
+	public final void createTree () {
+		freeBlock = EMPTY;
+		initNode (ROOT, 0f, 0f, w, h, EMPTY, 0);
+		nodeCount = 1;
+		Arrays.fill (leafOf, EMPTY);
+		overflow.clear ();
+	}
+
+	public void setRebuildPolicy (RebuildPolicy rebuildPolicy) {
+		this.rebuildPolicy = rebuildPolicy;
+		this.bulkStep = rebuildPolicy == RebuildPolicy.BULK;
+	}
+
+	public RebuildPolicy getRebuildPolicy () {
+		return rebuildPolicy;
+	}
+
+	/*
+	 * Fraction of objects changing node in a step above which ADAPTIVE rebuilds in bulk
+	 */
+	public void setRebuildThreshold (float rebuildThreshold) {
+		this.rebuildThreshold = rebuildThreshold;
+	}
+
+	/*
+	 * Whether the current step is rebuilt in bulk rather than updated incrementally
+	 */
+	public boolean isBulkStep () {
+		return bulkStep;
+	}
+
+	public int getCapacity () {
+		return capacity;
+	}
+
+	public int getMaxDepth () {
+		return maxDepth;
+	}
 
-			boolean yOverlap = valueInRange (this.y, node.getY (), node.getY () + node.getH ())
-							   || valueInRange (node.getY (), this.y, this.y + this.h);
+	/*
+	 * Node index holding the object, EMPTY if it is not in the tree
+	 */
+	public int getNode (int id) {
+		return id < leafOf.length && leafOf[id] >= 0 ? leafOf[id] : EMPTY;
+	}
 
-			return xOverlap && yOverlap;
+	/*
+	 * Nodes ever allocated, including the ones currently on the free list
+	 */
+	public int getNodeCount () {
+		return nodeCount;
+	}
+
+	/*
+	 * Depth of the deepest leaf
+	 */
+	public int getDepth () {
+		return getDepth (ROOT);
+	}
+
+	private int getDepth (int node) {
+		int block = firstChild[node];
+		if (block == EMPTY) {
+			return depth[node];
+		}
+
+		int deepest = 0;
+		for (int i = 0; i < 4; i++) {
+			deepest = Math.max (deepest, getDepth (block + i));
 		}
+		return deepest;
 	}
 
-	public static abstract class QuadTreeObject {
+	private void ensureObjectCapacity (int id) {
+		if (id >= leafOf.length) {
+			int oldLength = leafOf.length;
+			int length = Math.max (id + 1, oldLength * 2);
+			leafOf = Arrays.copyOf (leafOf, length);
+			objNext = Arrays.copyOf (objNext, length);
+			objPrev = Arrays.copyOf (objPrev, length);
+			Arrays.fill (leafOf, oldLength, length, EMPTY);
+		}
+	}
 
-		private QuadTreeNode associatedLeaf;
+	private void initNode (int node, float x, float y, float w, float h, int parentNode, int nodeDepth) {
+		nodeX[node] = x;
+		nodeY[node] = y;
+		nodeW[node] = w;
+		nodeH[node] = h;
+		firstChild[node] = EMPTY;
+		parent[node] = parentNode;
+		depth[node] = nodeDepth;
+		nodeFirstObj[node] = EMPTY;
+		nodeObjCount[node] = 0;
+		subtreeCount[node] = 0;
+	}
 
-		public QuadTreeObject () {
+	private int allocateBlock () {
+		if (freeBlock != EMPTY) {
+			int block = freeBlock;
+			freeBlock = firstChild[block];
+			return block;
 		}
 
-		public abstract float getX ();
+		if (nodeCount + 4 > nodeX.length) {
+			int length = nodeX.length * 2;
+			nodeX = Arrays.copyOf (nodeX, length);
+			nodeY = Arrays.copyOf (nodeY, length);
+			nodeW = Arrays.copyOf (nodeW, length);
+			nodeH = Arrays.copyOf (nodeH, length);
+			firstChild = Arrays.copyOf (firstChild, length);
+			parent = Arrays.copyOf (parent, length);
+			depth = Arrays.copyOf (depth, length);
+			nodeFirstObj = Arrays.copyOf (nodeFirstObj, length);
+			nodeObjCount = Arrays.copyOf (nodeObjCount, length);
+			subtreeCount = Arrays.copyOf (subtreeCount, length);
+		}
+		int block = nodeCount;
+		nodeCount += 4;
+		return block;
+	}
 
-		public abstract float getY ();
+	private void link (int id, int node) {
+		leafOf[id] = node;
+		objPrev[id] = EMPTY;
+		objNext[id] = nodeFirstObj[node];
+		if (objNext[id] != EMPTY) {
+			objPrev[objNext[id]] = id;
+		}
+		nodeFirstObj[node] = id;
+		nodeObjCount[node]++;
+	}
 
-		public abstract boolean completelyInBoundry (QuadTreeNode node);
+	private void unlink (int id) {
+		int node = leafOf[id];
+		if (objPrev[id] != EMPTY) {
+			objNext[objPrev[id]] = objNext[id];
+		}
+		else {
+			nodeFirstObj[node] = objNext[id];
+		}
+		if (objNext[id] != EMPTY) {
+			objPrev[objNext[id]] = objPrev[id];
+		}
+		nodeObjCount[node]--;
+		leafOf[id] = EMPTY;
+	}
 
-		public abstract QuadTreeQuery getQuery ();
+	/*
+	 * Whether the swept box fits in the node, so a query reaching the object always reaches its node
+	 */
+	public boolean completelyInBoundry (int id, int node) {
+		QuadTreeQuery box = store.getQuery (id, scratchQuery);
 
-		public void setNode (QuadTreeNode node) {
-			associatedLeaf = node;
+		if ((box.x >= nodeX[node] && box.x + box.w <= nodeX[node] + nodeW[node]) &&
+			(box.y >= nodeY[node] && box.y + box.h <= nodeY[node] + nodeH[node])) {
+			return true;
 		}
 
-		public QuadTreeNode getNode () {
-			/*if (associatedLeaf == null) {
-				System.out.println ("Not in tree!");
-			}*/
+		return false;
+	}
 
-			return associatedLeaf;
+	/*
+	 * Child of a split node that the swept box fits in, EMPTY if it straddles the split lines
+	 */
+	private int childContaining (int id, int node) {
+		QuadTreeQuery box = store.getQuery (id, scratchQuery);
+		float midX = nodeX[node] + nodeW[node] / 2;
+		float midY = nodeY[node] + nodeH[node] / 2;
+		int quadrant;
+
+		if (box.x + box.w <= midX) {
+			quadrant = 0;
+		}
+		else if (box.x >= midX) {
+			quadrant = 1;
+		}
+		else {
+			return EMPTY;
 		}
+
+		if (box.y >= midY) {
+			quadrant += 2;
+		}
+		else if (box.y + box.h > midY) {
+			return EMPTY;
+		}
+
+		return firstChild[node] + quadrant;
 	}
 
-	public QuadTree (float w, float h) {
-		this.w = w;
-		this.h = h;
-		createTree ();
+	/*
+	 * Bounding box of the particle swept by one velocity step
+	 */
+	public QuadTreeQuery getQuery (int id) {
+		return getQuery (id, new QuadTreeQuery ());
 	}
 
-	public final void createTree () {
-		treeHead = new QuadTreeNode<> (0f, 0f, w, h, null);
+	/*
+	 * Writes the swept bounding box into a reusable query
+	 */
+	public QuadTreeQuery getQuery (int id, QuadTreeQuery query) {
+		return store.getQuery (id, query);
 	}
 
 	@Override
 	public String toString () {
-		return treeHead.toString ();
+		return toString (ROOT, "");
+	}
+
+	private String toString (int node, String prefix) {
+		String buffer = prefix + "|->[objectsWithin: " + subtreeCount[node] + " Objects:";
+		for (int id = nodeFirstObj[node]; id != EMPTY; id = objNext[id]) {
+			buffer += " " + id;
+		}
+		buffer += "]\n";
+
+		if (firstChild[node] != EMPTY) {
+			for (int i = 0; i < 4; i++) {
+				buffer += prefix + "|\t" + toString (firstChild[node] + i, prefix + "|\t");
+			}
+		}
+
+		return buffer;
 	}
 
 	public ArrayList<Shape> getLines () {
-		return getLines (treeHead);
+		return getLines (ROOT);
 	}
 
-	public ArrayList<Shape> getLines (QuadTreeNode node) {
+	public ArrayList<Shape> getLines (int node) {
 		ArrayList<Shape> lines = new ArrayList<> ();
 
-		if (node.childNodes != null) {
-			lines.add (new Line2D.Float (node.getX (), (2 * node.getY () + node.getH ()) / 2, node.getX () + node.getW (), (2 * node.getY () + node.getH ()) / 2));
-			lines.add (new Line2D.Float ((2 * node.getX () + node.getW ()) / 2, node.getY (), (2 * node.getX () + node.getW ()) / 2, node.getY () + node.getH ()));
+		if (firstChild[node] != EMPTY) {
+			float x = nodeX[node], y = nodeY[node], w = nodeW[node], h = nodeH[node];
+			lines.add (new Line2D.Float (x, (2 * y + h) / 2, x + w, (2 * y + h) / 2));
+			lines.add (new Line2D.Float ((2 * x + w) / 2, y, (2 * x + w) / 2, y + h));
 
-			for (int i = 0; i < node.childNodes.length; i++) {
-				lines.addAll (getLines (node.childNodes[i]));
+			for (int i = 0; i < 4; i++) {
+				lines.addAll (getLines (firstChild[node] + i));
 			}
-
 		}
 
 		return lines;
 	}
 
-	private void logInsert (String message) {
-		if (debugInsert) {
-			System.out.println ("[Insert] " + message);
+	/*
+	 * Creates the children of a full leaf and pushes down every object that fits in one of them
+	 */
+	private void subdivideNode (int node) {
+		int block = allocateBlock ();
+		float x = nodeX[node], y = nodeY[node];
+		float newW = nodeW[node] / 2;
+		float newH = nodeH[node] / 2;
+		int childDepth = depth[node] + 1;
+
+		initNode (block, x, y, newW, newH, node, childDepth);
+		initNode (block + 1, x + newW, y, newW, newH, node, childDepth);
+		initNode (block + 2, x, y + newH, newW, newH, node, childDepth);
+		initNode (block + 3, x + newW, y + newH, newW, newH, node, childDepth);
+		firstChild[node] = block;
+
+		int id = nodeFirstObj[node];
+		while (id != EMPTY) {
+			int next = objNext[id];
+			int child = childContaining (id, node);
+			if (child != EMPTY) {
+				unlink (id);
+				link (id, child);
+				subtreeCount[child]++;
+			}
+			id = next;
 		}
-	}
-
-	private void subdivideNode (QuadTreeNode node) {
-		node.childNodes = new QuadTreeNode[4];
-		float newW = node.getW () / 2;
-		float newH = node.getH () / 2;
 
-		node.childNodes[0] = new QuadTreeNode (node.getX (), node.getY (), newW, newH, node);
-		node.childNodes[1] = new QuadTreeNode (node.getX () + newW, node.getY (), newW, newH, node);
-		node.childNodes[2] = new QuadTreeNode (node.getX (), node.getY () + newH, newW, newH, node);
-		node.childNodes[3] = new QuadTreeNode (node.getX () + newW, node.getY () + newH, newW, newH, node);
+		for (int i = 0; i < 4; i++) {
+			splitIfFull (block + i);
+		}
 	}
 
-	private boolean childrenHasAnyObjects (QuadTreeNode node) {
-		if (node.childNodes != null) {
-			return node.childNodes[0].hasObjectsWithin || node.childNodes[1].hasObjectsWithin || node.childNodes[2].hasObjectsWithin || node.childNodes[3].hasObjectsWithin;
+	private void splitIfFull (int node) {
+		if (firstChild[node] == EMPTY && nodeObjCount[node] > capacity && depth[node] < maxDepth) {
+			subdivideNode (node);
 		}
-		return false;
 	}
 
-	/*Inserts object into a child
-	 * return true when successfull insertion to child
-	 * return false when cant insert into any child
+	/*
+	 * Pulls every object below the node up into it and returns its children to the free list
 	 */
-	private boolean insertToAChild (T object, QuadTreeNode node) {
-		if (node.childNodes == null) {
-			subdivideNode (node);
+	private void collapse (int node) {
+		int block = firstChild[node];
+		if (block == EMPTY) {
+			return;
 		}
 
-		for (int i = 0; i < node.childNodes.length; i++) {
-			if (insert (object, node.childNodes[i])) {
-				return true;
+		for (int child = block; child < block + 4; child++) {
+			collapse (child);
+			int id = nodeFirstObj[child];
+			while (id != EMPTY) {
+				int next = objNext[id];
+				unlink (id);
+				link (id, node);
+				id = next;
 			}
 		}
 
-		return false;
+		firstChild[block] = freeBlock;
+		freeBlock = block;
+		firstChild[node] = EMPTY;
 	}
 
-	/*Main insertion function (object being as deep as possible)
-	 * Used to combine all other insertion functions recursively
-	 * Flow:
-	 * 1)Insert object as deep as possible, regardless of existing objects
-	 * 2)Traverse up from deepest spot till an empty space is available
+	/*
+	 * Insertion from top of tree
+	 * The object goes down to the deepest existing node it fits in, which then splits if it is full
 	 */
-	private void insertToDeepestEmptyNode (T object, QuadTreeNode startNode) {
-		//Find deepest node
-		if (!insertToAChild (object, startNode)) {
-			//Cannot put deeper
-			QuadTreeNode testingNode = startNode;
-
-			//Traverse up to find nearest empty node
-			while (testingNode != null && testingNode.containedObject != null) {
-				testingNode = testingNode.parentNode;
-			}
+	@Override
+	public void insert (int object) {
+		ensureObjectCapacity (object);
 
-			if (testingNode != null) {
-				//trim unused leafs
-				if (!childrenHasAnyObjects (testingNode)) {
-					testingNode.childNodes = null;
-				}
+		if (!completelyInBoundry (object, ROOT)) {
+			overflow.add (object);
+			leafOf[object] = OVERFLOW;
+			return;
+		}
 
-				testingNode.setContainedObject (object);
+		int node = ROOT;
+		subtreeCount[node]++;
+		while (firstChild[node] != EMPTY) {
+			int child = childContaining (object, node);
+			if (child == EMPTY) {
+				break;
 			}
+			node = child;
+			subtreeCount[node]++;
 		}
 
-		startNode.hasObjectsWithin = true;
+		link (object, node);
+		splitIfFull (node);
 	}
 
-	/*Starts insertion from a node, checking for bounds
-	 * returns true on successful insert
-	 * returns false when out of bounds
+	/*
+	 * Takes the object out of the tree, collapsing the highest ancestor left with capacity / 2 or fewer objects
 	 */
-	private boolean insert (T object, QuadTreeNode node) {
-		if (object.completelyInBoundry (node)) {
-			insertToDeepestEmptyNode (object, node);
-			return true;
+	public void delete (int object) {
+		int node = leafOf[object];
+		if (node == OVERFLOW) {
+			overflow.removeValue (object);
+			leafOf[object] = EMPTY;
+			return;
 		}
-		else {
-			//Not in bounds
-			return false;
+		if (node == EMPTY) {
+			return;
+		}
+
+		unlink (object);
+		int collapseNode = EMPTY;
+		for (int ancestor = node; ancestor != EMPTY; ancestor = parent[ancestor]) {
+			subtreeCount[ancestor]--;
+			if (firstChild[ancestor] != EMPTY && subtreeCount[ancestor] <= capacity / 2) {
+				collapseNode = ancestor;
+			}
+		}
+
+		if (collapseNode != EMPTY) {
+			collapse (collapseNode);
 		}
 	}
 
 	/*
-	 * Insertion from top of tree
+	 * Whether the object still belongs in its node: its box fits there and does not fit a child
 	 */
-	public void insert (T object) {
-		insert (object, treeHead);
+	private boolean inPlace (int object) {
+		int node = getNode (object);
+		return node != EMPTY && completelyInBoundry (object, node) &&
+			   (firstChild[node] == EMPTY || childContaining (object, node) == EMPTY);
 	}
 
-	private void logDelete (String message) {
-		if (debugDelete) {
-			System.out.println ("[Delete] " + message);
+	/*
+	 * Nothing to do while the object stays in place, otherwise it is deleted and inserted again from the top
+	 * During a bulk step the whole tree is rebuilt afterwards, so nothing is done at all
+	 */
+	@Override
+	public void update (int object) {
+		if (bulkStep || inPlace (object)) {
+			return;
 		}
+
+		relocations++;
+		delete (object);
+		insert (object);
+	}
+
+	public IntList getObjectsWithinBound (int id) {
+		IntList objects = new IntList ();
+		getObjectsWithinBound (getQuery (id), objects);
+		return objects;
 	}
 
 	/*
-	 * Preserves the tree so a deeper search can be carried out from the current node
+	 * Finishes a bulk step with a full rebuild, then picks the mode of the next step from the measured motion
+	 * An incremental step has already counted its relocations in update, a bulk step counts them here
 	 */
-	public void deleteDown (T object) {
-		QuadTreeNode node = object.getNode ();
+	@Override
+	public void rebuild () {
+		int n = store.size ();
+
+		if (bulkStep) {
+			relocations = 0;
+			if (rebuildPolicy == RebuildPolicy.ADAPTIVE) {
+				for (int i = 0; i < n; i++) {
+					if (!inPlace (i)) {
+						relocations++;
+					}
+				}
+			}
+			rebuildFromMorton ();
+		}
 
-		//Remove from tree
-		node.containedObject = null;
+		if (rebuildPolicy == RebuildPolicy.ADAPTIVE) {
+			bulkStep = relocations > rebuildThreshold * n;
+		}
+		relocations = 0;
+	}
 
-		//Only delete down
-		if (!childrenHasAnyObjects (node)) {
-			node.hasObjectsWithin = false;
-			node.childNodes = null;
+	/*
+	 * Builds the whole tree from scratch in O(n): ids are sorted by the Morton code of their centre so the
+	 * objects under any node form one contiguous range and each level splits a range in four by code bits
+	 */
+	public void rebuildFromMorton () {
+		int n = store.size ();
+		ensureObjectCapacity (n - 1);
+		createTree ();
+		morton.compute (store, w, h);
+
+		//Boxes gathered once in sorted order, the build then only reads memory sequentially
+		if (slotMinX.length < n) {
+			int length = Math.max (n, slotMinX.length * 2);
+			slotMinX = new float[length];
+			slotMinY = new float[length];
+			slotMaxX = new float[length];
+			slotMaxY = new float[length];
 		}
+		int[] ids = morton.getIds (), codes = morton.getCodes ();
+		int m = 0;
+		for (int k = 0; k < n; k++) {
+			int id = ids[k];
+			QuadTreeQuery box = store.getQuery (id, scratchQuery);
+			if (box.x >= 0 && box.x + box.w <= w && box.y >= 0 && box.y + box.h <= h) {
+				ids[m] = id;
+				codes[m] = codes[k];
+				slotMinX[m] = box.x;
+				slotMinY[m] = box.y;
+				slotMaxX[m] = box.x + box.w;
+				slotMaxY[m] = box.y + box.h;
+				m++;
+			}
+			else {
+				overflow.add (id);
+				leafOf[id] = OVERFLOW;
+			}
+		}
+
+		build (ROOT, ids, codes, 0, m);
+	}
+
+	/*
+	 * Ids changed, the tree is simply built again from the permuted store
+	 */
+	@Override
+	public void reorder (int[] newIds) {
+		rebuildFromMorton ();
+	}
+
+	@Override
+	public void reload () {
+		rebuildFromMorton ();
 	}
 
 	/*
-	 * Cleans up and collapses nodes that are no longer useful after a deleteDown (during reallocation)
+	 * Objects of [lo, hi) all have their centre in the node, ones whose box does not fit the child their
+	 * code points to stay in the node
 	 */
-	public QuadTreeNode deleteUp (T object) {
-		QuadTreeNode node = object.getNode ();
+	private void build (int node, int[] ids, int[] codes, int lo, int hi) {
+		subtreeCount[node] = hi - lo;
+		if (hi - lo <= capacity || depth[node] >= maxDepth) {
+			for (int k = lo; k < hi; k++) {
+				link (ids[k], node);
+			}
+			return;
+		}
 
-		//Collapse unused children to parent
-		while (node.parentNode != null && 
-			   node.parentNode.containedObject == null && 
-			   !childrenHasAnyObjects (node.parentNode) ) {
-			
-			node = node.parentNode;
-			node.hasObjectsWithin = false;
-			node.childNodes = null;
+		int block = allocateBlock ();
+		float x = nodeX[node], y = nodeY[node];
+		float newW = nodeW[node] / 2;
+		float newH = nodeH[node] / 2;
+		int childDepth = depth[node] + 1;
+
+		initNode (block, x, y, newW, newH, node, childDepth);
+		initNode (block + 1, x + newW, y, newW, newH, node, childDepth);
+		initNode (block + 2, x, y + newH, newW, newH, node, childDepth);
+		initNode (block + 3, x + newW, y + newH, newW, newH, node, childDepth);
+		firstChild[node] = block;
+
+		int shift = 2 * (MortonOrder.BITS - childDepth);
+		int k = lo;
+		for (int quadrant = 0; quadrant < 4; quadrant++) {
+			int child = block + quadrant;
+			float minX = nodeX[child], minY = nodeY[child];
+			float maxX = minX + nodeW[child], maxY = minY + nodeH[child];
+			int start = k, end = start;
+
+			while (k < hi && ((codes[k] >>> shift) & 3) == quadrant) {
+				if (slotMinX[k] >= minX && slotMaxX[k] <= maxX && slotMinY[k] >= minY && slotMaxY[k] <= maxY) {
+					ids[end] = ids[k];
+					codes[end] = codes[k];
+					slotMinX[end] = slotMinX[k];
+					slotMinY[end] = slotMinY[k];
+					slotMaxX[end] = slotMaxX[k];
+					slotMaxY[end] = slotMaxY[k];
+					end++;
+				}
+				else {
+					link (ids[k], node);
+				}
+				k++;
+			}
+			build (child, ids, codes, start, end);
 		}
+	}
 
-		return node;
+	@Override
+	public void query (QuadTreeQuery query, IntList objects) {
+		getObjectsWithinBound (query, objects);
 	}
 
-	private void logUpdate (String message) {
-		if (debugUpdate) {
-			System.out.println ("[Update] " + message);
+	/*
+	 * Every pair in a single traversal instead of one root-down query per object
+	 * Boxes fit in their nodes, so two objects can only touch when one sits in the other's node or below it.
+	 * Each node is visited with the objects of its ancestors that reach into it (active) and tests its own
+	 * bucket against them and against itself. Recursion depth is bounded by maxDepth.
+	 */
+	@Override
+	public void findPairs (IntList pairs) {
+		int n = store.size ();
+		if (boxMinX.length < n) {
+			int length = Math.max (n, boxMinX.length * 2);
+			boxMinX = new float[length];
+			boxMinY = new float[length];
+			boxMaxX = new float[length];
+			boxMaxY = new float[length];
+		}
+		for (int i = 0; i < n; i++) {
+			QuadTreeQuery box = store.getQuery (i, scratchQuery);
+			boxMinX[i] = box.x;
+			boxMinY[i] = box.y;
+			boxMaxX[i] = box.x + box.w;
+			boxMaxY[i] = box.y + box.h;
+		}
+
+		active.clear ();
+		findPairs (ROOT, 0, 0, pairs);
+
+		//Overflow objects against each other, then against the tree
+		for (int i = 0; i < overflow.size (); i++) {
+			int a = overflow.get (i);
+			for (int j = i + 1; j < overflow.size (); j++) {
+				addPairIfTouching (a, overflow.get (j), pairs);
+			}
+
+			pairCandidates.clear ();
+			getObjectsWithinBound (store.getQuery (a, pairQuery), ROOT, pairCandidates);
+			for (int j = 0; j < pairCandidates.size (); j++) {
+				addPairIfTouching (a, pairCandidates.get (j), pairs);
+			}
 		}
 	}
 
-	public void update (T object) {
-		QuadTreeNode node = object.getNode ();
+	private void findPairs (int node, int from, int to, IntList pairs) {
+		for (int a = nodeFirstObj[node]; a != EMPTY; a = objNext[a]) {
+			for (int k = from; k < to; k++) {
+				addPairIfTouching (a, active.get (k), pairs);
+			}
+			for (int b = objNext[a]; b != EMPTY; b = objNext[b]) {
+				addPairIfTouching (a, b, pairs);
+			}
+		}
 
-		if (node != null) {
-			//Exists in tree
-			//Only delete down so insert can use existing subdivisions to check more efficiently
-			deleteDown (object);
+		int block = firstChild[node];
+		if (block == EMPTY) {
+			return;
+		}
 
-			//Check if reallocation needed. If not, try put deeper
-			if (!insert (object, node)) {
-				//Clean up unused subdivisions, then update node with next available one
-				node = deleteUp (object);
+		for (int child = block; child < block + 4; child++) {
+			if (subtreeCount[child] == 0) {
+				continue;
+			}
 
-				//Reallocation
-				while (node != null && !insert (object, node)) {
-					node = node.parentNode;
+			float minX = nodeX[child], minY = nodeY[child];
+			float maxX = minX + nodeW[child], maxY = minY + nodeH[child];
+			int start = active.size ();
+			for (int k = from; k < to; k++) {
+				int b = active.get (k);
+				if (boxMinX[b] <= maxX && boxMaxX[b] >= minX && boxMinY[b] <= maxY && boxMaxY[b] >= minY) {
+					active.add (b);
 				}
-
-				if (node == null) {
-					//No node available
-					insert (object);
+			}
+			for (int b = nodeFirstObj[node]; b != EMPTY; b = objNext[b]) {
+				if (boxMinX[b] <= maxX && boxMaxX[b] >= minX && boxMinY[b] <= maxY && boxMaxY[b] >= minY) {
+					active.add (b);
 				}
 			}
+
+			findPairs (child, start, active.size (), pairs);
+			active.truncate (start);
 		}
-		else {
-			//Insert to tree
-			//Most probably particles stuck at boundry or "oh no"
-			insert (object);
+	}
+
+	private void addPairIfTouching (int a, int b, IntList pairs) {
+		if (boxMinX[a] <= boxMaxX[b] && boxMinX[b] <= boxMaxX[a] && boxMinY[a] <= boxMaxY[b] && boxMinY[b] <= boxMaxY[a]) {
+			pairs.add (a < b ? a : b);
+			pairs.add (a < b ? b : a);
 		}
 	}
 
-	public ArrayList<T> getObjectsWithinBound (QuadTreeObject originalObj) {
-		return getObjectsWithinBound (originalObj, treeHead);
+	/*
+	 * Appends every object in nodes intersecting the query to a caller owned list
+	 * Nothing is allocated unless the list has to grow
+	 */
+	public void getObjectsWithinBound (QuadTreeQuery query, IntList objects) {
+		objects.addAll (overflow);
+		getObjectsWithinBound (query, ROOT, objects);
 	}
 
-	public ArrayList<T> getObjectsWithinBound (QuadTreeObject originalObj, QuadTreeNode node) {
-		ArrayList<T> objects = new ArrayList<> ();
-		QuadTreeQuery query = originalObj.getQuery ();
+	/*
+	 * Same as above below one node and without the overflow, walks the tree with an explicit stack
+	 */
+	public void getObjectsWithinBound (QuadTreeQuery query, int node, IntList objects) {
+		int top = 0;
+		query.stack[top++] = node;
+
+		while (top > 0) {
+			node = query.stack[--top];
+			if (!query.intersects (nodeX[node], nodeY[node], nodeW[node], nodeH[node])) {
+				continue;
+			}
 
-		if (query.intersects (node)) {
-			if (node.containedObject != null) {
-				objects.add ((T) node.containedObject);
+			for (int id = nodeFirstObj[node]; id != EMPTY; id = objNext[id]) {
+				objects.add (id);
 			}
+			top = pushChildren (query, node, top);
+		}
+	}
 
-			if (node.childNodes != null) {
-				for (QuadTreeNode child : node.childNodes) {
-					if (child.hasObjectsWithin) {
-						objects.addAll (getObjectsWithinBound (originalObj, child));
-					}
-				}
+	/*
+	 * Streams every object in nodes intersecting the query (overflow included) into the visitor
+	 */
+	public void query (QuadTreeQuery query, Visitor visitor) {
+		for (int i = 0; i < overflow.size (); i++) {
+			visitor.visit (overflow.get (i));
+		}
+
+		int top = 0;
+		query.stack[top++] = ROOT;
+
+		while (top > 0) {
+			int node = query.stack[--top];
+			if (!query.intersects (nodeX[node], nodeY[node], nodeW[node], nodeH[node])) {
+				continue;
+			}
+
+			for (int id = nodeFirstObj[node]; id != EMPTY; id = objNext[id]) {
+				visitor.visit (id);
 			}
+			top = pushChildren (query, node, top);
 		}
+	}
 
-		return objects;
+	/*
+	 * Pushes the non empty children onto the stack of the query, a node is popped before its children
+	 * are pushed so the stack never holds more than 3 entries per level
+	 */
+	private int pushChildren (QuadTreeQuery query, int node, int top) {
+		int block = firstChild[node];
+		if (block != EMPTY) {
+			if (top + 4 > query.stack.length) {
+				query.stack = Arrays.copyOf (query.stack, query.stack.length * 2);
+			}
+			for (int child = block + 3; child >= block; child--) {
+				if (subtreeCount[child] > 0) {
+					query.stack[top++] = child;
+				}
+			}
+		}
+		return top;
 	}
 }
@@ -0,0 +1,264 @@
+package particlecollisionstest;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Draws a snapshot straight into the int pixels of a BufferedImage instead of one fillOval per particle
+ * Discs at least half a pixel across are filled span by span with Arrays.fill. Smaller ones only
+ * add to a per pixel count, which is coloured afterwards through a heat palette (log scaled against
+ * the busiest pixel) so dense regions of tiny particles stay readable.
+ *
+ * The image is split into horizontal bands. Particles are first binned by the bands their rows cover,
+ * then every band clips its discs to its own rows, so bands can be drawn on a ForkJoinPool without two
+ * threads ever writing the same pixel.
+ */
+public class RasterRenderer {
+
+	private static final int PALETTE_SIZE = 256;
+	private static final int BANDS = 16;
+
+	private int width;
+	private int height;
+	private int bandHeight;
+	private float scale;
+	private BufferedImage image;
+	private int[] pixels;
+	private int[] density;
+	private int[] palette;
+	private int background;
+	private int foreground;
+	private boolean heatmap;
+	private ForkJoinPool pool;
+	private BandTask[] tasks;
+	private ArrayList<BandTask> batch;
+	private SnapshotBuffer.Snapshot snapshot;
+	private int maxDensity;
+
+	/*
+	 * An image of width x height pixels showing a world scale times smaller
+	 */
+	public RasterRenderer (int width, int height, float scale, int threadCount) {
+		this.width = width;
+		this.height = height;
+		this.scale = scale;
+		this.image = new BufferedImage (width, height, BufferedImage.TYPE_INT_RGB);
+		this.pixels = ((DataBufferInt) image.getRaster ().getDataBuffer ()).getData ();
+		this.density = new int[width * height];
+		this.palette = createPalette ();
+		this.background = 0x000000;
+		this.foreground = 0xffffff;
+		this.heatmap = true;
+		this.pool = threadCount > 1 ? new ForkJoinPool (threadCount) : null;
+		this.batch = new ArrayList<> ();
+
+		bandHeight = (height + BANDS - 1) / BANDS;
+		tasks = new BandTask[BANDS];
+		for (int i = 0; i < BANDS; i++) {
+			tasks[i] = new BandTask (Math.min (height, i * bandHeight), Math.min (height, (i + 1) * bandHeight));
+		}
+	}
+
+	public BufferedImage getImage () {
+		return image;
+	}
+
+	public void setColors (int background, int foreground) {
+		this.background = background & 0xffffff;
+		this.foreground = foreground & 0xffffff;
+	}
+
+	/*
+	 * Sub-pixel particles coloured by how many share a pixel, otherwise drawn as single foreground pixels
+	 */
+	public void setHeatmap (boolean heatmap) {
+		this.heatmap = heatmap;
+	}
+
+	public void shutdown () {
+		if (pool != null) {
+			pool.shutdown ();
+			pool = null;
+		}
+	}
+
+	public BufferedImage render (SnapshotBuffer.Snapshot snapshot) {
+		this.snapshot = snapshot;
+
+		binParticles ();
+		runBands (BandTask.DRAW);
+		if (heatmap) {
+			maxDensity = 0;
+			for (BandTask task : tasks) {
+				maxDensity = Math.max (maxDensity, task.maxDensity);
+			}
+			if (maxDensity > 0) {
+				runBands (BandTask.COLOR);
+			}
+		}
+
+		this.snapshot = null;
+		return image;
+	}
+
+	private void binParticles () {
+		for (BandTask task : tasks) {
+			task.ids.clear ();
+		}
+
+		float[] y = snapshot.y, r = snapshot.r;
+		for (int i = 0; i < snapshot.size; i++) {
+			float cy = y[i] * scale, cr = r[i] * scale;
+			if (cy + cr < 0 || cy - cr >= height) {
+				continue;
+			}
+			int first = Math.max (0, (int) (cy - cr) / bandHeight);
+			int last = Math.min (BANDS - 1, (int) (cy + cr) / bandHeight);
+			for (int band = first; band <= last; band++) {
+				tasks[band].ids.add (i);
+			}
+		}
+	}
+
+	private void runBands (int stage) {
+		for (BandTask task : tasks) {
+			task.stage = stage;
+			task.reinitialize ();
+			batch.add (task);
+		}
+
+		if (pool == null) {
+			for (BandTask task : batch) {
+				task.invoke ();
+			}
+		}
+		else {
+			pool.invoke (new RecursiveAction () {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute () {
+					invokeAll (batch);
+				}
+			});
+		}
+		batch.clear ();
+	}
+
+	/*
+	 * Black through blue, red and yellow to white
+	 */
+	private static int[] createPalette () {
+		int[] colors = {0x000000, 0x2020c0, 0xc02020, 0xf0e020, 0xffffff};
+		int[] palette = new int[PALETTE_SIZE];
+
+		for (int i = 0; i < PALETTE_SIZE; i++) {
+			float t = (float) i / (PALETTE_SIZE - 1) * (colors.length - 1);
+			int k = Math.min ((int) t, colors.length - 2);
+			float f = t - k;
+			int a = colors[k], b = colors[k + 1];
+			int red = (int) (((a >> 16) & 0xff) * (1 - f) + ((b >> 16) & 0xff) * f);
+			int green = (int) (((a >> 8) & 0xff) * (1 - f) + ((b >> 8) & 0xff) * f);
+			int blue = (int) ((a & 0xff) * (1 - f) + (b & 0xff) * f);
+			palette[i] = (red << 16) | (green << 8) | blue;
+		}
+		return palette;
+	}
+
+	private class BandTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		static final int DRAW = 0;
+		static final int COLOR = 1;
+
+		int top;
+		int bottom;
+		int stage;
+		int maxDensity;
+		//Particles touching the rows of this band
+		IntList ids;
+
+		BandTask (int top, int bottom) {
+			this.top = top;
+			this.bottom = bottom;
+			this.ids = new IntList ();
+		}
+
+		@Override
+		protected void compute () {
+			if (stage == DRAW) {
+				draw ();
+			}
+			else {
+				color ();
+			}
+		}
+
+		private void draw () {
+			Arrays.fill (pixels, top * width, bottom * width, background);
+			if (heatmap) {
+				Arrays.fill (density, top * width, bottom * width, 0);
+			}
+			maxDensity = 0;
+
+			float[] x = snapshot.x, y = snapshot.y, r = snapshot.r;
+			for (int k = 0; k < ids.size (); k++) {
+				int i = ids.get (k);
+				float cx = x[i] * scale, cy = y[i] * scale, cr = r[i] * scale;
+
+				if (cr < 0.5f) {
+					point (cx, cy);
+				}
+				else {
+					disc (cx, cy, cr);
+				}
+			}
+		}
+
+		private void point (float cx, float cy) {
+			int px = (int) cx, py = (int) cy;
+			if (px < 0 || px >= width || py < top || py >= bottom) {
+				return;
+			}
+
+			int index = py * width + px;
+			if (heatmap) {
+				maxDensity = Math.max (maxDensity, ++density[index]);
+			}
+			else {
+				pixels[index] = foreground;
+			}
+		}
+
+		//Pixel centres inside the disc, row by row, clipped to the band and the image
+		private void disc (float cx, float cy, float cr) {
+			int y0 = Math.max (top, (int) Math.ceil (cy - cr - 0.5f));
+			int y1 = Math.min (bottom - 1, (int) Math.floor (cy + cr - 0.5f));
+
+			for (int py = y0; py <= y1; py++) {
+				float dy = py + 0.5f - cy;
+				float half = (float) Math.sqrt (Math.max (0, cr * cr - dy * dy));
+				int x0 = Math.max (0, (int) Math.ceil (cx - half - 0.5f));
+				int x1 = Math.min (width - 1, (int) Math.floor (cx + half - 0.5f));
+				if (x0 <= x1) {
+					Arrays.fill (pixels, py * width + x0, py * width + x1 + 1, foreground);
+				}
+			}
+		}
+
+		private void color () {
+			double logMax = Math.log (1 + RasterRenderer.this.maxDensity);
+			for (int index = top * width; index < bottom * width; index++) {
+				int count = density[index];
+				if (count > 0 && pixels[index] == background) {
+					int shade = (int) (Math.log (1 + count) / logMax * (PALETTE_SIZE - 1));
+					pixels[index] = palette[Math.max (1, shade)];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package particlecollisionstest;
+
+/*
+ * Fails with exit code 1 when the thread count or the broadphase changes the result of a run
+ * For every collision mode the same seeded scene is run on every broadphase, on one thread and then
+ * several times on more threads, every step hashed into a ReplayLog (see there) and compared with the
+ * single threaded run on the first broadphase. A broadphase whose query is not safe on several threads
+ * at once (see Broadphase.query), or a mode that hands pairs to the response in traversal order, shows
+ * up as a first differing step. Races do not hit every run, so each thread count is repeated.
+ * The QuadTree also runs with its BULK rebuild policy, which ignores updates until the next rebuild.
+ * Usage: ReplayCheck [particles] [steps] [threads] [runs] [seed]
+ */
+public class ReplayCheck {
+
+	public static void main (String[] args) {
+		int count = args.length > 0 ? Integer.parseInt (args[0]) : 2000;
+		int steps = args.length > 1 ? Integer.parseInt (args[1]) : 200;
+		int threads = args.length > 2 ? Integer.parseInt (args[2]) : 4;
+		int runs = args.length > 3 ? Integer.parseInt (args[3]) : 3;
+		long seed = args.length > 4 ? Long.parseLong (args[4]) : 7;
+
+		boolean passed = true;
+		for (Simulation.CollisionMode mode : Simulation.CollisionMode.values ()) {
+			ReplayLog reference = null;
+			Broadphase.Type[] types = Broadphase.Type.values ();
+			for (int setup = 0; setup <= types.length; setup++) {
+				//Every broadphase as it comes, then the QuadTree rebuilt in bulk
+				Broadphase.Type type = setup < types.length ? types[setup] : Broadphase.Type.QUADTREE;
+				boolean bulk = setup == types.length;
+				String name = mode + ", " + type + (bulk ? " " + QuadTree.RebuildPolicy.BULK : "");
+
+				ReplayLog single = record (mode, type, bulk, 1, count, steps, seed);
+				if (reference == null) {
+					reference = single;
+				}
+				boolean identical = check (name, 1, single.firstDivergence (reference));
+				for (int run = 0; run < runs && identical; run++) {
+					identical = check (name, threads, record (mode, type, bulk, threads, count, steps, seed).firstDivergence (reference));
+				}
+				if (identical) {
+					System.out.println (name + ": identical on 1 and " + runs + " times on " + threads + " threads");
+				}
+				passed &= identical;
+			}
+		}
+
+		System.out.println (passed ? "Every thread count and broadphase agrees" : "Runs differ");
+		System.exit (passed ? 0 : 1);
+	}
+
+	private static boolean check (String name, int threads, long step) {
+		if (step >= 0) {
+			System.out.println (name + " on " + threads + " threads: first differs at step " + step);
+		}
+		return step < 0;
+	}
+
+	private static ReplayLog record (Simulation.CollisionMode mode, Broadphase.Type type, boolean bulk, int threads, int count, int steps, long seed) {
+		Simulation simulation = new Simulation (1920, 1200, type);
+		if (bulk) {
+			((QuadTree) simulation.getBroadphase ()).setRebuildPolicy (QuadTree.RebuildPolicy.BULK);
+		}
+		simulation.setCollisionMode (mode);
+		simulation.setThreadCount (threads);
+		SceneGenerator.populateHalton (simulation, count, new SeedableRandom (seed));
+
+		ReplayLog log = new ReplayLog ();
+		log.record (simulation);
+		for (int i = 0; i < steps; i++) {
+			simulation.step ();
+			log.record (simulation);
+		}
+		simulation.shutdown ();
+		return log;
+	}
+}
@@ -0,0 +1,175 @@
+package particlecollisionstest;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/*
+ * A hash of the complete particle state after every step, to check that two runs are the same
+ * Runs started from the same seed (see SeedableRandom and SceneGenerator) with the same collision mode
+ * and time step produce the same log for any thread count and any broadphase: every mode hands pairs to
+ * the response in id order and drops broadphase false positives before they can matter. ReplayCheck
+ * verifies both. So a log recorded before a change to the step loop shows the first step at which the
+ * change made a difference.
+ *
+ * The hash covers the exact bits of x, y, vx, vy, r and species in id order plus the particle count,
+ * so a store reordered at a different interval hashes differently even when the particles agree.
+ * Saved as text, one "step hash" line per step.
+ *
+ * Usage: ReplayLog [log] [log]   prints the first step at which the two logs differ
+ */
+public class ReplayLog {
+
+	private static final long MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+	private long firstStep;
+	private long[] hashes;
+	private int size;
+
+	public ReplayLog () {
+		this.firstStep = -1;
+		this.hashes = new long[1024];
+	}
+
+	/*
+	 * Hash of the state the engine is in now, recorded under its step count
+	 */
+	public void record (Engine engine) {
+		add (engine.getStepCount (), hash (engine.getStore ()));
+	}
+
+	public void add (long step, long hash) {
+		if (size == 0) {
+			firstStep = step;
+		}
+		else if (step != firstStep + size) {
+			throw new IllegalArgumentException ("Step " + step + " does not follow step " + (firstStep + size - 1));
+		}
+		if (size == hashes.length) {
+			hashes = Arrays.copyOf (hashes, size * 2);
+		}
+		hashes[size++] = hash;
+	}
+
+	public long getFirstStep () {
+		return firstStep;
+	}
+
+	public long getLastStep () {
+		return firstStep + size - 1;
+	}
+
+	public int size () {
+		return size;
+	}
+
+	public boolean contains (long step) {
+		return size > 0 && step >= firstStep && step < firstStep + size;
+	}
+
+	public long getHash (long step) {
+		if (!contains (step)) {
+			throw new IndexOutOfBoundsException ("Step " + step + " is not in the log");
+		}
+		return hashes[(int) (step - firstStep)];
+	}
+
+	/*
+	 * First step both logs contain with different hashes, -1 when they agree on every common step
+	 */
+	public long firstDivergence (ReplayLog other) {
+		long first = Math.max (firstStep, other.firstStep);
+		long last = Math.min (getLastStep (), other.getLastStep ());
+		for (long step = first; step <= last; step++) {
+			if (getHash (step) != other.getHash (step)) {
+				return step;
+			}
+		}
+		return -1;
+	}
+
+	public void save (File file) throws IOException {
+		try (BufferedWriter writer = new BufferedWriter (new FileWriter (file))) {
+			for (int i = 0; i < size; i++) {
+				writer.write ((firstStep + i) + " " + String.format ("%016x", hashes[i]));
+				writer.newLine ();
+			}
+		}
+	}
+
+	public static ReplayLog load (File file) throws IOException {
+		ReplayLog log = new ReplayLog ();
+		try (BufferedReader reader = new BufferedReader (new FileReader (file))) {
+			String line;
+			while ((line = reader.readLine ()) != null) {
+				line = line.trim ();
+				if (line.isEmpty ()) {
+					continue;
+				}
+				String[] parts = line.split ("\\s+");
+				try {
+					log.add (Long.parseLong (parts[0]), new BigInteger (parts[1], 16).longValue ());
+				}
+				catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+					throw new IOException ("Not a replay log line: " + line);
+				}
+			}
+		}
+		return log;
+	}
+
+	/*
+	 * Order dependent 64 bit hash of every particle column, the same on every JVM
+	 */
+	public static long hash (ParticleStore store) {
+		int n = store.size ();
+		long h = n * MULTIPLIER;
+		h = mix (h, store.x, n);
+		h = mix (h, store.y, n);
+		h = mix (h, store.vx, n);
+		h = mix (h, store.vy, n);
+		h = mix (h, store.r, n);
+		for (int i = 0; i < n; i++) {
+			h = (Long.rotateLeft (h, 23) ^ store.species[i]) * MULTIPLIER;
+		}
+		return finish (h);
+	}
+
+	private static long mix (long h, float[] column, int n) {
+		for (int i = 0; i < n; i++) {
+			//Raw bits, so -0 and 0 or two NaNs that compare equal still count as different
+			h = (Long.rotateLeft (h, 23) ^ Float.floatToRawIntBits (column[i])) * MULTIPLIER;
+		}
+		return finish (h);
+	}
+
+	//Final avalanche of MurmurHash3
+	private static long finish (long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public static void main (String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println ("Usage: ReplayLog [log] [log]");
+			return;
+		}
+		ReplayLog a = load (new File (args[0])), b = load (new File (args[1]));
+		long step = a.firstDivergence (b);
+		if (step < 0) {
+			System.out.println ("Identical over steps " + Math.max (a.getFirstStep (), b.getFirstStep ()) + " to " + Math.min (a.getLastStep (), b.getLastStep ()));
+		}
+		else {
+			System.out.println ("First difference at step " + step + ": " + String.format ("%016x", a.getHash (step)) + " vs " + String.format ("%016x", b.getHash (step)));
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package particlecollisionstest;
+
+import java.util.Random;
+
+/*
+ * Builds initial particle layouts shared by the windowed and headless front ends
+ */
+public class SceneGenerator {
+
+	private SceneGenerator () {
+	}
+
+	/*
+	 * Spreads particles over the whole world using a (2, 3) Halton sequence
+	 * Velocities are random integers in [-2, 2], radii random in [0, 5)
+	 */
+	public static void populateHalton (Engine engine, int count, Random rand) {
+		float width = engine.getWidth ();
+		float height = engine.getHeight ();
+
+		for (int i = 0; i < count; i++) {
+			engine.addParticle (width * haltonSequence (i, 2), height * haltonSequence (i, 3), rand.nextInt (5) - 2, rand.nextInt (5) - 2, rand.nextFloat () * 5);
+		}
+	}
+
+	public static float haltonSequence (int index, int base) {
+		float result = 0;
+		float f = 1f / base;
+		int i = index;
+
+		while (i > 0) {
+			result += f * (i % base);
+			i = (int) Math.floor ((float) i / base);
+			f = f / base;
+		}
+
+		return result;
+	}
+}
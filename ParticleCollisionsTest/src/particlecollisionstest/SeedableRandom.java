@@ -0,0 +1,53 @@
+package particlecollisionstest;
+
+import java.util.Random;
+
+/*
+ * java.util.Random with its 48 bit state readable and writable, so a checkpoint can resume the exact sequence
+ * Same generator and same output as Random for the same seed, but not thread safe.
+ */
+public class SeedableRandom extends Random {
+
+	private static final long serialVersionUID = 1L;
+	private static final long MULTIPLIER = 0x5DEECE66DL;
+	private static final long ADDEND = 0xBL;
+	private static final long MASK = (1L << 48) - 1;
+
+	private long state;
+
+	public SeedableRandom () {
+		super ();
+	}
+
+	public SeedableRandom (long seed) {
+		super (seed);
+	}
+
+	/*
+	 * Also called by the Random constructors
+	 */
+	@Override
+	public void setSeed (long seed) {
+		super.setSeed (seed);
+		state = (seed ^ MULTIPLIER) & MASK;
+	}
+
+	public long getState () {
+		return state;
+	}
+
+	/*
+	 * Continues from a state returned by getState
+	 * A pending nextGaussian is dropped, like with setSeed
+	 */
+	public void setState (long state) {
+		super.setSeed (0);
+		this.state = state & MASK;
+	}
+
+	@Override
+	protected int next (int bits) {
+		state = (state * MULTIPLIER + ADDEND) & MASK;
+		return (int) (state >>> (48 - bits));
+	}
+}
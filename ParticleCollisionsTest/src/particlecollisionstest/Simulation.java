@@ -0,0 +1,312 @@
+package particlecollisionstest;
+
+/*
+ * Headless simulation engine
+ * Owns the ParticleStore and the Broadphase and advances them one fixed step at a time through a StepPipeline,
+ * through a ContinuousStepper when continuous collision detection is on, through a ContactSolver, or through a
+ * MultiRateStepper that moves every particle in steps to suit its speed.
+ * Has no dependency on AWT/Swing so it can be stepped from a plain main or a batch job.
+ * Stage timings and counters go to getMetrics (), disabled until turned on.
+ */
+public class Simulation implements Engine {
+
+	public enum CollisionMode {
+		//Move a full step, then fix up overlaps, can tunnel at high speeds
+		DISCRETE,
+		//Time of impact sub-stepping, safe for any time step
+		CONTINUOUS,
+		//Sequential impulses with warm starting, settles dense packings instead of jittering
+		CONTACT_SOLVER,
+		//Power-of-two sub-steps per particle by speed, only the fast few pay for short steps
+		MULTI_RATE
+	}
+
+	private float width;
+	private float height;
+	private long stepCount;
+	private ParticleStore store;
+	private Broadphase broadphase;
+	private CollisionResponse response;
+	private StepPipeline pipeline;
+	private ContinuousStepper continuous;
+	private ContactSolver contacts;
+	private MultiRateStepper multiRate;
+	private CollisionMode collisionMode;
+	private int reorderInterval;
+	private MortonOrder morton;
+	private int[] newIds;
+	private StepMetrics metrics;
+	private ConservationTracker conservation;
+
+	public Simulation (float width, float height) {
+		this (width, height, Broadphase.Type.QUADTREE);
+	}
+
+	public Simulation (float width, float height, Broadphase.Type broadphaseType) {
+		this.width = width;
+		this.height = height;
+		this.stepCount = 0;
+
+		store = new ParticleStore ();
+		metrics = new StepMetrics ();
+		broadphase = createBroadphase (broadphaseType);
+		response = new CollisionResponse (store, width, height);
+		pipeline = new StepPipeline (store, broadphase, response, width, 1, metrics);
+		continuous = new ContinuousStepper (store, broadphase, response, width, height, metrics);
+		contacts = new ContactSolver (store, broadphase, response, metrics);
+		multiRate = new MultiRateStepper (store, broadphase, response, metrics);
+		collisionMode = CollisionMode.DISCRETE;
+		reorderInterval = 0;
+	}
+
+	private Broadphase createBroadphase (Broadphase.Type type) {
+		switch (type) {
+			case UNIFORM_GRID:
+				return new UniformGrid (store, width, height);
+			case SWEEP_AND_PRUNE:
+				return new SweepAndPrune (store);
+			case QUADTREE:
+			default:
+				return new QuadTree (store, width, height);
+		}
+	}
+
+	/*
+	 * Adds a particle and returns its id
+	 */
+	@Override
+	public int addParticle (float x, float y, float dx, float dy, float r) {
+		return addParticle (x, y, dx, dy, r, 0);
+	}
+
+	@Override
+	public int addParticle (float x, float y, float dx, float dy, float r, int species) {
+		int id = store.add (x, y, dx, dy, r, species);
+		broadphase.insert (id);
+		if (conservation != null) {
+			conservation.added (id);
+		}
+		return id;
+	}
+
+	@Override
+	public ParticleStore getStore () {
+		return store;
+	}
+
+	public Particle getParticle (int id) {
+		return new Particle (store, id);
+	}
+
+	public int getParticleCount () {
+		return store.size ();
+	}
+
+	public Broadphase getBroadphase () {
+		return broadphase;
+	}
+
+	/*
+	 * Used in CONTACT_SOLVER mode, for its settings
+	 */
+	public ContactSolver getContactSolver () {
+		return contacts;
+	}
+
+	/*
+	 * Used in CONTINUOUS mode, for its counts
+	 */
+	public ContinuousStepper getContinuousStepper () {
+		return continuous;
+	}
+
+	/*
+	 * Used in MULTI_RATE mode, for its settings
+	 */
+	public MultiRateStepper getMultiRateStepper () {
+		return multiRate;
+	}
+
+	@Override
+	public StepMetrics getMetrics () {
+		return metrics;
+	}
+
+	/*
+	 * Every pipeline task records into its own delta, the other modes into the one of the shared response
+	 */
+	@Override
+	public void setConservationTracking (boolean enabled) {
+		conservation = enabled ? new ConservationTracker (store) : null;
+		response.setDelta (enabled ? conservation.newDelta () : null);
+		pipeline.setConservation (conservation);
+	}
+
+	@Override
+	public ConservationTracker getConservation () {
+		return conservation;
+	}
+
+	@Override
+	public float getWidth () {
+		return width;
+	}
+
+	@Override
+	public float getHeight () {
+		return height;
+	}
+
+	@Override
+	public long getStepCount () {
+		return stepCount;
+	}
+
+	/*
+	 * Length of one step, velocities are in distance per unit of time
+	 * Larger steps are only collision safe in CONTINUOUS mode, and in MULTI_RATE mode up to 2^maxLevel
+	 * times the step a DISCRETE run would need
+	 */
+	@Override
+	public void setTimeStep (float timeStep) {
+		store.setTimeStep (timeStep);
+	}
+
+	@Override
+	public float getTimeStep () {
+		return store.getTimeStep ();
+	}
+
+	/*
+	 * Every interval steps the store is sorted along a Morton curve so particles close in space are
+	 * close in memory, 0 turns it off
+	 * Particle ids are not stable while this is on
+	 */
+	public void setReorderInterval (int reorderInterval) {
+		this.reorderInterval = Math.max (0, reorderInterval);
+	}
+
+	public int getReorderInterval () {
+		return reorderInterval;
+	}
+
+	/*
+	 * Sorts the store by Morton code of the particle centres and renames the ids held by the broadphase
+	 */
+	public void reorder () {
+		int n = store.size ();
+		if (morton == null) {
+			morton = new MortonOrder (n);
+		}
+		morton.compute (store, width, height);
+
+		int[] order = morton.getIds ();
+		if (newIds == null || newIds.length < n) {
+			newIds = new int[Math.max (n, store.capacity ())];
+		}
+		for (int k = 0; k < n; k++) {
+			newIds[order[k]] = k;
+		}
+
+		store.permute (order);
+		broadphase.reorder (newIds);
+		contacts.reorder (newIds);
+	}
+
+	public void setCollisionMode (CollisionMode collisionMode) {
+		this.collisionMode = collisionMode;
+	}
+
+	public CollisionMode getCollisionMode () {
+		return collisionMode;
+	}
+
+	/*
+	 * Number of threads the step pipeline runs on, results do not depend on it
+	 * CONTINUOUS, CONTACT_SOLVER and MULTI_RATE modes always run on the calling thread
+	 */
+	public void setThreadCount (int threadCount) {
+		pipeline.setThreadCount (threadCount);
+	}
+
+	public int getThreadCount () {
+		return pipeline.getThreadCount ();
+	}
+
+	/*
+	 * Contacts still overlapping after their response ("oh no") since the simulation started
+	 */
+	public long getPenetrations () {
+		return pipeline.getPenetrations () + continuous.getPenetrations () + contacts.getPenetrations () + multiRate.getPenetrations ();
+	}
+
+	/*
+	 * Stops any worker threads, the simulation can still be stepped on the calling thread afterwards
+	 */
+	@Override
+	public void shutdown () {
+		pipeline.setThreadCount (1);
+	}
+
+	@Override
+	public void reload (long stepCount) {
+		this.stepCount = stepCount;
+		broadphase.reload ();
+		contacts.reload ();
+		if (conservation != null) {
+			conservation.recompute ();
+		}
+	}
+
+	/*
+	 * Advances the simulation by n steps
+	 */
+	@Override
+	public void step (int n) {
+		for (int i = 0; i < n; i++) {
+			step ();
+		}
+	}
+
+	/*
+	 * Advances the simulation by a single step
+	 */
+	@Override
+	public void step () {
+		if (reorderInterval > 0 && stepCount % reorderInterval == 0) {
+			reorder ();
+		}
+
+		if (collisionMode == CollisionMode.CONTINUOUS) {
+			continuous.step ();
+		}
+		else if (collisionMode == CollisionMode.CONTACT_SOLVER) {
+			contacts.step ();
+		}
+		else if (collisionMode == CollisionMode.MULTI_RATE) {
+			multiRate.step ();
+		}
+		else {
+			pipeline.step ();
+		}
+		if (metrics.isEnabled () && broadphase instanceof QuadTree) {
+			QuadTree tree = (QuadTree) broadphase;
+			metrics.setTree (tree.getDepth (), tree.getNodeCount ());
+		}
+		metrics.endStep ();
+		stepCount++;
+		if (conservation != null) {
+			conservation.apply (response.getDelta ());
+			conservation.endStep (stepCount);
+		}
+	}
+
+	public float calculateSystemEnergy () {
+		float ke = 0;
+		float[] vx = store.vx, vy = store.vy, mass = store.mass;
+		for (int i = 0; i < store.size (); i++) {
+			ke += 0.5 * mass[i] * (vx[i] * vx[i] + vy[i] * vy[i]);
+		}
+		return ke;
+	}
+}
@@ -0,0 +1,236 @@
+package particlecollisionstest;
+
+import java.util.Arrays;
+
+/*
+ * Puts settled groups of particles to sleep for the ContactSolver, sleeping particles are not moved,
+ * not updated in the broadphase and take part in no contact
+ * A particle counts the steps its speed has stayed below the sleep speed. After every step the
+ * touching contacts join particles into islands (union-find), and an island in which every particle
+ * has been slow for sleepSteps goes to sleep as a whole, its velocities set to 0.
+ *
+ * The particles of a sleeping island are linked into a ring, so waking one wakes all of them: a
+ * resting stack is never left half asleep. An island wakes when an awake particle moving faster than
+ * the sleep speed has a swept box overlapping one of its particles, or when any awake particle touches
+ * one of them, so nothing can creep into a sleeping island unnoticed.
+ */
+public class SleepIslands {
+
+	private ParticleStore store;
+	private CollisionResponse response;
+	private float sleepSpeed;
+	private int sleepSteps;
+	private boolean[] asleep;
+	private int[] slowSteps;
+	//Ring of the sleeping island a particle belongs to
+	private int[] next;
+	//Union-find over the awake particles, rebuilt every step
+	private int[] parent;
+	private int[] islandSlowSteps;
+	private int[] ringLast;
+	private int sleeping;
+	private long wakeUps;
+	private int[] scratch;
+	private boolean[] asleepScratch;
+
+	public SleepIslands (ParticleStore store, CollisionResponse response) {
+		this.store = store;
+		this.response = response;
+		this.sleepSpeed = 0.05f;
+		this.sleepSteps = 60;
+		int capacity = store.capacity ();
+		this.asleep = new boolean[capacity];
+		this.slowSteps = new int[capacity];
+		this.next = new int[capacity];
+		this.parent = new int[capacity];
+		this.islandSlowSteps = new int[capacity];
+		this.ringLast = new int[capacity];
+		this.scratch = new int[capacity];
+		this.asleepScratch = new boolean[capacity];
+	}
+
+	/*
+	 * Particles slower than sleepSpeed for sleepSteps steps in a row may sleep
+	 */
+	public void setThreshold (float sleepSpeed, int sleepSteps) {
+		this.sleepSpeed = sleepSpeed;
+		this.sleepSteps = Math.max (1, sleepSteps);
+	}
+
+	public boolean isAsleep (int p) {
+		return p < asleep.length && asleep[p];
+	}
+
+	public int getSleepingCount () {
+		return sleeping;
+	}
+
+	/*
+	 * Islands woken since creation
+	 */
+	public long getWakeUps () {
+		return wakeUps;
+	}
+
+	public void ensureCapacity (int n) {
+		if (n > asleep.length) {
+			int capacity = Math.max (n, asleep.length * 2);
+			asleep = Arrays.copyOf (asleep, capacity);
+			slowSteps = Arrays.copyOf (slowSteps, capacity);
+			next = Arrays.copyOf (next, capacity);
+			parent = new int[capacity];
+			islandSlowSteps = new int[capacity];
+			ringLast = new int[capacity];
+			scratch = new int[capacity];
+			asleepScratch = new boolean[capacity];
+		}
+	}
+
+	/*
+	 * Whether a candidate pair wakes an island: one particle asleep and the other awake and moving or touching it
+	 * Wakes it and returns true if so
+	 */
+	public boolean wakeIfDisturbed (int p, int o) {
+		if (asleep[p] == asleep[o]) {
+			return false;
+		}
+		int sleeper = asleep[p] ? p : o, mover = asleep[p] ? o : p;
+		if (!isMoving (mover) && !touching (p, o)) {
+			return false;
+		}
+		wake (sleeper);
+		return true;
+	}
+
+	/*
+	 * Wakes the whole island of p, every particle in it starts counting slow steps again
+	 */
+	public void wake (int p) {
+		if (!asleep[p]) {
+			return;
+		}
+		int i = p;
+		do {
+			asleep[i] = false;
+			slowSteps[i] = 0;
+			sleeping--;
+			i = next[i];
+		} while (i != p);
+		wakeUps++;
+	}
+
+	public void wakeAll () {
+		int n = store.size ();
+		for (int i = 0; i < n; i++) {
+			asleep[i] = false;
+			slowSteps[i] = 0;
+		}
+		sleeping = 0;
+	}
+
+	/*
+	 * After the step, with the contacts of the step as pair keys (lower id << 32 | higher id)
+	 */
+	public void update (long[] contacts, int contactCount) {
+		int n = store.size ();
+		ensureCapacity (n);
+
+		for (int i = 0; i < n; i++) {
+			parent[i] = i;
+			if (!asleep[i]) {
+				slowSteps[i] = isMoving (i) ? 0 : slowSteps[i] + 1;
+			}
+		}
+
+		for (int c = 0; c < contactCount; c++) {
+			int p = (int) (contacts[c] >>> 32), o = (int) contacts[c];
+			if (asleep[p] || asleep[o]) {
+				continue;
+			}
+			if (touching (p, o)) {
+				union (p, o);
+			}
+		}
+
+		//Slowest to settle member of every island, the root is its lowest id so it comes first
+		for (int i = 0; i < n; i++) {
+			if (!asleep[i]) {
+				int root = find (i);
+				islandSlowSteps[root] = root == i ? slowSteps[i] : Math.min (islandSlowSteps[root], slowSteps[i]);
+			}
+		}
+
+		//Link the members of every settled island into a ring from its root up, then put them to sleep
+		for (int i = 0; i < n; i++) {
+			if (!asleep[i]) {
+				int root = find (i);
+				if (islandSlowSteps[root] >= sleepSteps) {
+					if (root != i) {
+						next[ringLast[root]] = i;
+					}
+					ringLast[root] = i;
+				}
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			if (!asleep[i]) {
+				int root = find (i);
+				if (islandSlowSteps[root] >= sleepSteps) {
+					if (ringLast[root] == i) {
+						next[i] = root;
+					}
+					asleep[i] = true;
+					sleeping++;
+					response.stop (i);
+				}
+			}
+		}
+	}
+
+	/*
+	 * The store was permuted, newIds maps every old id to its new one
+	 */
+	public void reorder (int[] newIds) {
+		int n = store.size ();
+		ensureCapacity (n);
+		System.arraycopy (asleep, 0, asleepScratch, 0, n);
+		System.arraycopy (slowSteps, 0, scratch, 0, n);
+		for (int i = 0; i < n; i++) {
+			asleep[newIds[i]] = asleepScratch[i];
+			slowSteps[newIds[i]] = scratch[i];
+		}
+		System.arraycopy (next, 0, scratch, 0, n);
+		for (int i = 0; i < n; i++) {
+			next[newIds[i]] = newIds[scratch[i]];
+		}
+	}
+
+	private boolean isMoving (int p) {
+		float vx = store.vx[p], vy = store.vy[p];
+		return vx * vx + vy * vy > sleepSpeed * sleepSpeed;
+	}
+
+	private boolean touching (int p, int o) {
+		float dx = store.x[o] - store.x[p], dy = store.y[o] - store.y[p], distance = store.r[p] + store.r[o];
+		return dx * dx + dy * dy <= distance * distance;
+	}
+
+	private int find (int p) {
+		while (parent[p] != p) {
+			parent[p] = parent[parent[p]];
+			p = parent[p];
+		}
+		return p;
+	}
+
+	//The lower root wins so islands do not depend on the contact order
+	private void union (int p, int o) {
+		int a = find (p), b = find (o);
+		if (a < b) {
+			parent[b] = a;
+		}
+		else if (b < a) {
+			parent[a] = b;
+		}
+	}
+}
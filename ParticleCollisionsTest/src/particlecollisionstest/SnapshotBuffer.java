@@ -0,0 +1,82 @@
+package particlecollisionstest;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Hands particle positions from the simulation thread to the render thread without locks
+ * Three snapshots rotate between the writer (back), the latest published one (ready) and the reader
+ * (front). Publishing swaps back and ready, taking swaps front and ready, so each snapshot is only ever
+ * touched by one thread and neither side waits for the other.
+ * The writer skips the copy while the reader has not taken the last published snapshot, so positions are
+ * copied at most about once per frame however fast the simulation runs.
+ */
+public class SnapshotBuffer {
+
+	private AtomicReference<Snapshot> ready;
+	private Snapshot back;
+	private Snapshot front;
+	private volatile boolean taken;
+
+	public SnapshotBuffer () {
+		ready = new AtomicReference<> (new Snapshot ());
+		back = new Snapshot ();
+		front = new Snapshot ();
+		taken = true;
+	}
+
+	/*
+	 * Simulation thread, copies the store unless the previous snapshot was not rendered yet
+	 */
+	public void publish (ParticleStore store, long step) {
+		if (!taken) {
+			return;
+		}
+		back.copy (store, step);
+		taken = false;
+		back = ready.getAndSet (back);
+	}
+
+	/*
+	 * Render thread, the newest snapshot published so far, valid until the next call
+	 */
+	public Snapshot take () {
+		if (ready.get ().step > front.step) {
+			front = ready.getAndSet (front);
+			taken = true;
+		}
+		return front;
+	}
+
+	/*
+	 * Positions and radii of every particle at the end of one step
+	 */
+	public static class Snapshot {
+		public float[] x;
+		public float[] y;
+		public float[] r;
+		public int size;
+		public long step;
+
+		public Snapshot () {
+			x = new float[0];
+			y = new float[0];
+			r = new float[0];
+			size = 0;
+			step = -1;
+		}
+
+		private void copy (ParticleStore store, long step) {
+			int n = store.size ();
+			if (x.length < n) {
+				x = new float[store.capacity ()];
+				y = new float[store.capacity ()];
+				r = new float[store.capacity ()];
+			}
+			System.arraycopy (store.x, 0, x, 0, n);
+			System.arraycopy (store.y, 0, y, 0, n);
+			System.arraycopy (store.r, 0, r, 0, n);
+			size = n;
+			this.step = step;
+		}
+	}
+}
@@ -0,0 +1,355 @@
+package particlecollisionstest;
+
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Per stage timing histograms and step counters
+ * Stages are timed with System.nanoTime into log-linear buckets, so recording is a couple of array
+ * writes and nothing is allocated. While disabled start () does not even read the clock and every
+ * other call returns on the enabled check.
+ *
+ * The stepping thread records every stage except RENDER, which is recorded by whichever thread paints.
+ * Exposed through JMX (StepMetricsMBean) once registered, and as a log line every logInterval steps.
+ */
+public class StepMetrics implements StepMetricsMBean {
+
+	public enum Stage {
+		INTEGRATE,
+		TREE_UPDATE,
+		QUERY,
+		NARROWPHASE,
+		RESPONSE,
+		RENDER
+	}
+
+	private volatile boolean enabled;
+	private int logInterval;
+	private Histogram[] histograms;
+	private long steps;
+	private long candidatePairs;
+	private long collisions;
+	private long penetrations;
+	private long crowdedSteps;
+	private long lastCandidatePairs;
+	private long lastCollisions;
+	private int treeDepth;
+	private int treeNodes;
+
+	public StepMetrics () {
+		histograms = new Histogram[Stage.values ().length];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new Histogram ();
+		}
+		enabled = false;
+		logInterval = 0;
+	}
+
+	/*
+	 * Registers under particlecollisionstest:type=StepMetrics,name=<name> on the platform MBean server
+	 */
+	public boolean register (String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer ().registerMBean (this, new ObjectName ("particlecollisionstest:type=StepMetrics,name=" + name));
+			return true;
+		}
+		catch (JMException ex) {
+			System.out.println (ex.getMessage ());
+			return false;
+		}
+	}
+
+	@Override
+	public boolean isEnabled () {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled (boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/*
+	 * Prints a summary every logInterval steps while enabled, 0 never
+	 */
+	@Override
+	public void setLogInterval (int logInterval) {
+		this.logInterval = Math.max (0, logInterval);
+	}
+
+	@Override
+	public int getLogInterval () {
+		return logInterval;
+	}
+
+	/*
+	 * Start of a timed section, 0 while disabled
+	 */
+	public long start () {
+		return enabled ? System.nanoTime () : 0;
+	}
+
+	/*
+	 * Records the time since start against a stage and returns the current time, so stages can be chained
+	 */
+	public long lap (Stage stage, long start) {
+		if (!enabled) {
+			return 0;
+		}
+		long now = System.nanoTime ();
+		histograms[stage.ordinal ()].record (now - start);
+		return now;
+	}
+
+	public void countCandidatePairs (long count) {
+		if (enabled) {
+			candidatePairs += count;
+			lastCandidatePairs = count;
+		}
+	}
+
+	public void countCollisions (long count) {
+		if (enabled) {
+			collisions += count;
+			lastCollisions = count;
+		}
+	}
+
+	public void countPenetrations (long count) {
+		if (enabled) {
+			penetrations += count;
+		}
+	}
+
+	/*
+	 * Steps that needed more events than their budget, all of them were still played back
+	 */
+	public void countCrowdedSteps (long count) {
+		if (enabled) {
+			crowdedSteps += count;
+		}
+	}
+
+	public void setTree (int depth, int nodes) {
+		if (enabled) {
+			treeDepth = depth;
+			treeNodes = nodes;
+		}
+	}
+
+	/*
+	 * Closes a step and prints the summary when it is due
+	 */
+	public void endStep () {
+		if (!enabled) {
+			return;
+		}
+		steps++;
+		if (logInterval > 0 && steps % logInterval == 0) {
+			System.out.println ("[Metrics] " + getSummary ());
+		}
+	}
+
+	@Override
+	public synchronized void reset () {
+		for (Histogram histogram : histograms) {
+			histogram.clear ();
+		}
+		steps = 0;
+		candidatePairs = 0;
+		collisions = 0;
+		penetrations = 0;
+		crowdedSteps = 0;
+		lastCandidatePairs = 0;
+		lastCollisions = 0;
+	}
+
+	public Histogram getHistogram (Stage stage) {
+		return histograms[stage.ordinal ()];
+	}
+
+	@Override
+	public long getSteps () {
+		return steps;
+	}
+
+	@Override
+	public long getCandidatePairs () {
+		return candidatePairs;
+	}
+
+	@Override
+	public long getCollisions () {
+		return collisions;
+	}
+
+	@Override
+	public long getPenetrations () {
+		return penetrations;
+	}
+
+	@Override
+	public long getCrowdedSteps () {
+		return crowdedSteps;
+	}
+
+	@Override
+	public long getLastCandidatePairs () {
+		return lastCandidatePairs;
+	}
+
+	@Override
+	public long getLastCollisions () {
+		return lastCollisions;
+	}
+
+	@Override
+	public int getTreeDepth () {
+		return treeDepth;
+	}
+
+	@Override
+	public int getTreeNodes () {
+		return treeNodes;
+	}
+
+	@Override
+	public double getIntegrateMillis () {
+		return getHistogram (Stage.INTEGRATE).getMean () / 1e6;
+	}
+
+	@Override
+	public double getTreeUpdateMillis () {
+		return getHistogram (Stage.TREE_UPDATE).getMean () / 1e6;
+	}
+
+	@Override
+	public double getQueryMillis () {
+		return getHistogram (Stage.QUERY).getMean () / 1e6;
+	}
+
+	@Override
+	public double getNarrowphaseMillis () {
+		return getHistogram (Stage.NARROWPHASE).getMean () / 1e6;
+	}
+
+	@Override
+	public double getResponseMillis () {
+		return getHistogram (Stage.RESPONSE).getMean () / 1e6;
+	}
+
+	@Override
+	public double getRenderMillis () {
+		return getHistogram (Stage.RENDER).getMean () / 1e6;
+	}
+
+	/*
+	 * One line: mean, median and 99th percentile per stage in ms, then the counters
+	 */
+	@Override
+	public String getSummary () {
+		DecimalFormat df = new DecimalFormat ("0.###");
+		StringBuilder line = new StringBuilder ();
+		line.append ("steps ").append (steps);
+		for (Stage stage : Stage.values ()) {
+			Histogram histogram = getHistogram (stage);
+			if (histogram.getCount () == 0) {
+				continue;
+			}
+			line.append (", ").append (stage.name ().toLowerCase ()).append (' ')
+				.append (df.format (histogram.getMean () / 1e6)).append ('/')
+				.append (df.format (histogram.getPercentile (0.5) / 1e6)).append ('/')
+				.append (df.format (histogram.getPercentile (0.99) / 1e6)).append (" ms");
+		}
+		line.append (", pairs ").append (lastCandidatePairs);
+		line.append (", collisions ").append (lastCollisions);
+		line.append (", penetrations ").append (penetrations);
+		if (crowdedSteps > 0) {
+			line.append (", crowded steps ").append (crowdedSteps);
+		}
+		if (treeNodes > 0) {
+			line.append (", tree depth ").append (treeDepth).append (" nodes ").append (treeNodes);
+		}
+		return line.toString ();
+	}
+
+	/*
+	 * Durations in nanoseconds, every power of two is split in SUB_BUCKETS linear buckets so a bucket is
+	 * at most 1/8 of its value wide. Percentiles are reported as the upper bound of their bucket.
+	 */
+	public static class Histogram {
+		private static final int SUB_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+		private long[] buckets;
+		private long count;
+		private long total;
+		private long max;
+
+		public Histogram () {
+			buckets = new long[BUCKETS];
+		}
+
+		public synchronized void record (long nanos) {
+			nanos = Math.max (0, nanos);
+			buckets[bucketOf (nanos)]++;
+			count++;
+			total += nanos;
+			max = Math.max (max, nanos);
+		}
+
+		public synchronized void clear () {
+			Arrays.fill (buckets, 0);
+			count = 0;
+			total = 0;
+			max = 0;
+		}
+
+		public synchronized long getCount () {
+			return count;
+		}
+
+		public synchronized double getMean () {
+			return count > 0 ? (double) total / count : 0;
+		}
+
+		public synchronized long getMax () {
+			return max;
+		}
+
+		public synchronized long getPercentile (double fraction) {
+			long rank = Math.max (1, (long) Math.ceil (fraction * count));
+			long seen = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				seen += buckets[b];
+				if (seen >= rank) {
+					return Math.min (max, upperBound (b));
+				}
+			}
+			return max;
+		}
+
+		//Below SUB_BUCKETS one bucket per value, above that the top SUB_BITS bits under the leading one
+		private static int bucketOf (long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int octave = 63 - Long.numberOfLeadingZeros (value);
+			int sub = (int) ((value >>> (octave - SUB_BITS)) & (SUB_BUCKETS - 1));
+			return (octave - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		private static long upperBound (int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int octave = bucket / SUB_BUCKETS + SUB_BITS - 1;
+			long width = 1L << (octave - SUB_BITS);
+			return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package particlecollisionstest;
+
+/*
+ * JMX view of StepMetrics, stage times are means in ms since the last reset
+ */
+public interface StepMetricsMBean {
+
+	public boolean isEnabled ();
+
+	public void setEnabled (boolean enabled);
+
+	public int getLogInterval ();
+
+	public void setLogInterval (int logInterval);
+
+	public long getSteps ();
+
+	public long getCandidatePairs ();
+
+	public long getCollisions ();
+
+	public long getPenetrations ();
+
+	public long getCrowdedSteps ();
+
+	public long getLastCandidatePairs ();
+
+	public long getLastCollisions ();
+
+	public int getTreeDepth ();
+
+	public int getTreeNodes ();
+
+	public double getIntegrateMillis ();
+
+	public double getTreeUpdateMillis ();
+
+	public double getQueryMillis ();
+
+	public double getNarrowphaseMillis ();
+
+	public double getResponseMillis ();
+
+	public double getRenderMillis ();
+
+	public String getSummary ();
+
+	public void reset ();
+}
@@ -0,0 +1,455 @@
+package particlecollisionstest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * The fixed timestep, split into explicit stages that each batch-process every particle:
+ * 1) integrate       move every particle by its velocity and bounce off the walls
+ * 2) broadphase      update/rebuild the culling structure once, after everything has moved
+ * 3) candidates      swept box pairs from the broadphase
+ * 4) narrowphase     keep only pairs that actually touch
+ * 5) resolve         elastic response for every contact
+ *
+ * Stages 1, 3, 4 and 5 run on a ForkJoinPool when more than one thread is configured.
+ * Candidates are grouped in vertical stripes at least as wide as the largest possible interaction
+ * distance, and a pair belongs to the stripe of its left particle, so resolving a stripe only touches
+ * that stripe and the one to its right. Even stripes are resolved together, then odd stripes, so no
+ * particle is ever written by two threads and no pair is resolved twice.
+ *
+ * The stripe layout only depends on the particle state and every stripe's pairs are sorted by id,
+ * so results are bit-identical for every thread count and every broadphase traversal order, as long as
+ * the broadphase keeps to the thread safety of Broadphase.query. ReplayCheck verifies it.
+ * On a single thread candidates come from one bulk findPairs over the broadphase instead of a query
+ * per particle, which gives the same pairs.
+ *
+ * Every stage is timed into the StepMetrics handed in, which costs nothing while they are disabled.
+ */
+public class StepPipeline {
+
+	private static final int MAX_STRIPES = 64;
+
+	private ParticleStore store;
+	private Broadphase broadphase;
+	private CollisionResponse response;
+	private float width;
+	private int threadCount;
+	private ForkJoinPool pool;
+	private int stripeCount;
+	private float stripeWidth;
+	private int[] stripeStart;
+	private int[] stripeOf;
+	private int[] stripeIds;
+	private long penetrations;
+	private IntegrateTask[] integrateTasks;
+	private StripeTask[] stripeTasks;
+	private ArrayList<RecursiveAction> batch;
+	private RecursiveAction batchAction;
+	private IntList bulkPairs;
+	private StepMetrics metrics;
+	private ConservationTracker conservation;
+
+	public StepPipeline (ParticleStore store, Broadphase broadphase, CollisionResponse response, float width, int threadCount, StepMetrics metrics) {
+		this.store = store;
+		this.metrics = metrics;
+		this.broadphase = broadphase;
+		this.response = response;
+		this.width = width;
+		this.stripeStart = new int[MAX_STRIPES + 1];
+		this.stripeOf = new int[store.capacity ()];
+		this.stripeIds = new int[store.capacity ()];
+		this.batch = new ArrayList<> ();
+		this.batchAction = new RecursiveAction () {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute () {
+				invokeAll (batch);
+			}
+		};
+		this.bulkPairs = new IntList ();
+
+		integrateTasks = new IntegrateTask[MAX_STRIPES];
+		stripeTasks = new StripeTask[MAX_STRIPES];
+		for (int i = 0; i < MAX_STRIPES; i++) {
+			integrateTasks[i] = new IntegrateTask ();
+			stripeTasks[i] = new StripeTask (i);
+		}
+
+		setThreadCount (threadCount);
+	}
+
+	/*
+	 * 1 runs every stage on the calling thread
+	 */
+	public final void setThreadCount (int threadCount) {
+		shutdown ();
+		this.threadCount = Math.max (1, threadCount);
+		this.pool = this.threadCount > 1 ? new ForkJoinPool (this.threadCount) : null;
+	}
+
+	public int getThreadCount () {
+		return threadCount;
+	}
+
+	public int getStripeCount () {
+		return stripeCount;
+	}
+
+	/*
+	 * Number of pairs still overlapping after their response ("oh no") since creation
+	 */
+	public long getPenetrations () {
+		return penetrations;
+	}
+
+	public void shutdown () {
+		if (pool != null) {
+			pool.shutdown ();
+			pool = null;
+		}
+	}
+
+	public void step () {
+		int n = store.size ();
+		ensureCapacity (n);
+
+		long time = metrics.start ();
+		integrate (n);
+		time = metrics.lap (StepMetrics.Stage.INTEGRATE, time);
+		updateBroadphase (n);
+		time = metrics.lap (StepMetrics.Stage.TREE_UPDATE, time);
+		layoutStripes (n);
+		findCandidates ();
+		time = metrics.lap (StepMetrics.Stage.QUERY, time);
+		narrowphase ();
+		time = metrics.lap (StepMetrics.Stage.NARROWPHASE, time);
+		resolve ();
+		metrics.lap (StepMetrics.Stage.RESPONSE, time);
+
+		if (conservation != null) {
+			for (int i = 0; i < MAX_STRIPES; i++) {
+				conservation.apply (integrateTasks[i].response.getDelta ());
+				conservation.apply (stripeTasks[i].response.getDelta ());
+			}
+		}
+	}
+
+	/*
+	 * Every task gets its own delta so no two threads ever write the same one, folded in task order
+	 * after every step. null stops recording.
+	 */
+	public void setConservation (ConservationTracker conservation) {
+		this.conservation = conservation;
+		for (int i = 0; i < MAX_STRIPES; i++) {
+			integrateTasks[i].response.setDelta (conservation != null ? conservation.newDelta () : null);
+			stripeTasks[i].response.setDelta (conservation != null ? conservation.newDelta () : null);
+		}
+	}
+
+	private void ensureCapacity (int n) {
+		if (n > stripeIds.length) {
+			int capacity = Math.max (n, stripeIds.length * 2);
+			stripeOf = new int[capacity];
+			stripeIds = new int[capacity];
+		}
+	}
+
+	//Indexed loops, an iterator per loop would be the only allocation left in a step
+	private void runBatch () {
+		for (int i = 0; i < batch.size (); i++) {
+			batch.get (i).reinitialize ();
+		}
+
+		if (pool == null) {
+			for (int i = 0; i < batch.size (); i++) {
+				batch.get (i).invoke ();
+			}
+		}
+		else {
+			batchAction.reinitialize ();
+			pool.invoke (batchAction);
+		}
+		batch.clear ();
+	}
+
+	private void runStripes (int stage) {
+		for (int s = 0; s < stripeCount; s++) {
+			stripeTasks[s].stage = stage;
+			batch.add (stripeTasks[s]);
+		}
+		runBatch ();
+	}
+
+	/*
+	 * Stage 1
+	 */
+	private void integrate (int n) {
+		int chunk = (n + MAX_STRIPES - 1) / MAX_STRIPES;
+		for (int i = 0; i < MAX_STRIPES; i++) {
+			IntegrateTask task = integrateTasks[i];
+			task.from = Math.min (n, i * chunk);
+			task.to = Math.min (n, task.from + chunk);
+			batch.add (task);
+		}
+		runBatch ();
+	}
+
+	/*
+	 * Stage 2, the broadphase structures are not thread safe so this is serial
+	 */
+	private void updateBroadphase (int n) {
+		for (int i = 0; i < n; i++) {
+			broadphase.update (i);
+		}
+		broadphase.rebuild ();
+	}
+
+	/*
+	 * Picks the stripe width from the largest reach (radius + speed) and bins ids by stripe with a counting sort
+	 */
+	private void layoutStripes (int n) {
+		float maxReach = 0;
+		for (int i = 0; i < MAX_STRIPES; i++) {
+			maxReach = Math.max (maxReach, integrateTasks[i].maxReach);
+		}
+
+		float minStripeWidth = 2 * maxReach;
+		stripeCount = minStripeWidth > 0 ? (int) Math.min (MAX_STRIPES, Math.floor (width / minStripeWidth)) : MAX_STRIPES;
+		stripeCount = Math.max (1, stripeCount);
+		stripeWidth = width / stripeCount;
+
+		Arrays.fill (stripeStart, 0);
+		float[] x = store.x;
+		for (int i = 0; i < n; i++) {
+			int s = (int) (x[i] / stripeWidth);
+			s = s < 0 ? 0 : (s >= stripeCount ? stripeCount - 1 : s);
+			stripeOf[i] = s;
+			stripeStart[s + 1]++;
+		}
+		for (int s = 0; s < stripeCount; s++) {
+			stripeStart[s + 1] += stripeStart[s];
+		}
+		for (int s = 0; s < stripeCount; s++) {
+			stripeTasks[s].cursor = stripeStart[s];
+		}
+		for (int i = 0; i < n; i++) {
+			stripeIds[stripeTasks[stripeOf[i]].cursor++] = i;
+		}
+	}
+
+	/*
+	 * Stage 3
+	 */
+	private void findCandidates () {
+		sizePairBuffers ();
+		if (pool == null) {
+			collectBulkCandidates ();
+		}
+		else {
+			runStripes (StripeTask.CANDIDATES);
+		}
+		metrics.countCandidatePairs (countPairs ());
+	}
+
+	/*
+	 * Every stripe gets a pair buffer as large as the largest any stripe has needed so far, the load moves
+	 * between stripes and buffers grown one stripe at a time would keep allocating long after the warmup
+	 */
+	private void sizePairBuffers () {
+		int capacity = 0;
+		for (int s = 0; s < MAX_STRIPES; s++) {
+			capacity = Math.max (capacity, stripeTasks[s].pairs.length);
+		}
+		for (int s = 0; s < MAX_STRIPES; s++) {
+			if (stripeTasks[s].pairs.length < capacity) {
+				stripeTasks[s].pairs = new long[capacity];
+			}
+		}
+	}
+
+	private long countPairs () {
+		long count = 0;
+		for (int s = 0; s < stripeCount; s++) {
+			count += stripeTasks[s].pairCount;
+		}
+		return count;
+	}
+
+	/*
+	 * Hands every broadphase pair to the stripe of its left particle, the same rule as the per stripe queries
+	 */
+	private void collectBulkCandidates () {
+		for (int s = 0; s < stripeCount; s++) {
+			stripeTasks[s].pairCount = 0;
+		}
+
+		bulkPairs.clear ();
+		broadphase.findPairs (bulkPairs);
+
+		float[] x = store.x;
+		for (int i = 0; i < bulkPairs.size (); i += 2) {
+			int p = bulkPairs.get (i), o = bulkPairs.get (i + 1);
+			if (x[p] < x[o] || (x[p] == x[o] && p < o)) {
+				stripeTasks[stripeOf[p]].addPair (p, o);
+			}
+			else {
+				stripeTasks[stripeOf[o]].addPair (o, p);
+			}
+		}
+
+		for (int s = 0; s < stripeCount; s++) {
+			LongSort.sort (stripeTasks[s].pairs, 0, stripeTasks[s].pairCount);
+		}
+	}
+
+	/*
+	 * Stage 4
+	 */
+	private void narrowphase () {
+		runStripes (StripeTask.NARROWPHASE);
+		metrics.countCollisions (countPairs ());
+	}
+
+	/*
+	 * Stage 5
+	 */
+	private void resolve () {
+		for (int color = 0; color < 2; color++) {
+			for (int s = color; s < stripeCount; s += 2) {
+				stripeTasks[s].stage = StripeTask.RESOLVE;
+				batch.add (stripeTasks[s]);
+			}
+			runBatch ();
+		}
+
+		long stepPenetrations = 0;
+		for (int s = 0; s < stripeCount; s++) {
+			stepPenetrations += stripeTasks[s].penetrations;
+			stripeTasks[s].penetrations = 0;
+		}
+		penetrations += stepPenetrations;
+		metrics.countPenetrations (stepPenetrations);
+	}
+
+	private class IntegrateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		CollisionResponse response = StepPipeline.this.response.copy ();
+		int from;
+		int to;
+		float maxReach;
+
+		@Override
+		protected void compute () {
+			float[] vx = store.vx, vy = store.vy, r = store.r;
+			float dt = store.getTimeStep ();
+			float reach = 0;
+
+			for (int i = from; i < to; i++) {
+				response.updateNextPosition (i);
+				response.updateBoundryCheck (i);
+				reach = Math.max (reach, r[i] + Math.max (Math.abs (vx[i]), Math.abs (vy[i])) * dt);
+			}
+			maxReach = reach;
+		}
+	}
+
+	private class StripeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		static final int CANDIDATES = 0;
+		static final int NARROWPHASE = 1;
+		static final int RESOLVE = 2;
+
+		CollisionResponse response = StepPipeline.this.response.copy ();
+		int stripe;
+		int cursor;
+		int stage;
+		long penetrations;
+		//Pairs packed as (left id << 32 | right id)
+		long[] pairs;
+		int pairCount;
+		IntList candidates;
+		QuadTree.QuadTreeQuery query;
+		QuadTree.QuadTreeQuery other;
+
+		StripeTask (int stripe) {
+			this.stripe = stripe;
+			this.pairs = new long[16];
+			this.candidates = new IntList ();
+			this.query = new QuadTree.QuadTreeQuery ();
+			this.other = new QuadTree.QuadTreeQuery ();
+		}
+
+		@Override
+		protected void compute () {
+			switch (stage) {
+				case CANDIDATES:
+					collectCandidates ();
+					break;
+				case NARROWPHASE:
+					filterContacts ();
+					break;
+				default:
+					resolveContacts ();
+			}
+		}
+
+		private void addPair (int p, int o) {
+			if (pairCount == pairs.length) {
+				pairs = Arrays.copyOf (pairs, pairCount * 2);
+			}
+			pairs[pairCount++] = ((long) p << 32) | o;
+		}
+
+		/*
+		 * Pairs whose left particle lies in this stripe (ties broken by id), sorted into canonical order
+		 */
+		private void collectCandidates () {
+			float[] x = store.x;
+			pairCount = 0;
+
+			for (int k = stripeStart[stripe]; k < stripeStart[stripe + 1]; k++) {
+				int p = stripeIds[k];
+				store.getQuery (p, query);
+				candidates.clear ();
+				broadphase.query (query, candidates);
+
+				for (int i = 0; i < candidates.size (); i++) {
+					int o = candidates.get (i);
+					if ((x[p] < x[o] || (x[p] == x[o] && p < o)) && query.intersects (store.getQuery (o, other))) {
+						addPair (p, o);
+					}
+				}
+			}
+
+			LongSort.sort (pairs, 0, pairCount);
+		}
+
+		private void filterContacts () {
+			int contacts = 0;
+			for (int i = 0; i < pairCount; i++) {
+				long pair = pairs[i];
+				if (response.collides ((int) (pair >>> 32), (int) pair)) {
+					pairs[contacts++] = pair;
+				}
+			}
+			pairCount = contacts;
+		}
+
+		/*
+		 * Earlier contacts in this step may already have pushed a pair apart, so touching is checked again
+		 */
+		private void resolveContacts () {
+			for (int i = 0; i < pairCount; i++) {
+				int p = (int) (pairs[i] >>> 32), o = (int) pairs[i];
+				if (response.collides (p, o) && response.resolve (p, o)) {
+					penetrations++;
+				}
+			}
+		}
+	}
+}
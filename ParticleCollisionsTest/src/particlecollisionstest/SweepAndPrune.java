@@ -0,0 +1,237 @@
+package particlecollisionstest;
+
+import java.util.Arrays;
+
+/*
+ * Sort and sweep broadphase along x over the swept bounding boxes (see ParticleStore.getQuery)
+ * The sorted order is kept between steps and repaired with an insertion sort, with coherent
+ * motion almost nothing moves so a rebuild is close to O(n).
+ *
+ * Any update marks the recorded boxes stale (the velocity may have changed too), the next query
+ * repairs the order first.
+ */
+public class SweepAndPrune implements Broadphase {
+
+	private ParticleStore store;
+	//Sorted by minX, minX/maxX/minY/maxY are stored in sorted order for a linear sweep
+	private int[] order;
+	private float[] minX;
+	private float[] maxX;
+	private float[] minY;
+	private float[] maxY;
+	//Full sort buffers, kept so a rebuild from scratch does not allocate either
+	private long[] packed;
+	private int[] scratchOrder;
+	private float[] scratch;
+	private int sortedSize;
+	private float maxWidth;
+	private boolean dirty;
+	private QuadTree.QuadTreeQuery scratchQuery;
+
+	public SweepAndPrune (ParticleStore store) {
+		this.store = store;
+		int capacity = store.capacity ();
+		this.order = new int[capacity];
+		this.minX = new float[capacity];
+		this.maxX = new float[capacity];
+		this.minY = new float[capacity];
+		this.maxY = new float[capacity];
+		this.packed = new long[capacity];
+		this.scratchOrder = new int[capacity];
+		this.scratch = new float[capacity];
+		this.sortedSize = 0;
+		this.dirty = true;
+		this.scratchQuery = new QuadTree.QuadTreeQuery ();
+	}
+
+	@Override
+	public void insert (int id) {
+		dirty = true;
+	}
+
+	@Override
+	public void update (int id) {
+		dirty = true;
+	}
+
+	/*
+	 * The sorted order is kept, only the ids in it are renamed
+	 */
+	@Override
+	public void reorder (int[] newIds) {
+		for (int k = 0; k < sortedSize; k++) {
+			order[k] = newIds[order[k]];
+		}
+		dirty = true;
+	}
+
+	/*
+	 * Nothing is sorted any more, the next rebuild sorts everything from scratch
+	 */
+	@Override
+	public void reload () {
+		sortedSize = 0;
+		dirty = true;
+	}
+
+	private void ensureCapacity (int n) {
+		if (n > order.length) {
+			int capacity = Math.max (n, order.length * 2);
+			order = Arrays.copyOf (order, capacity);
+			minX = new float[capacity];
+			maxX = new float[capacity];
+			minY = new float[capacity];
+			maxY = new float[capacity];
+			packed = new long[capacity];
+			scratchOrder = new int[capacity];
+			scratch = new float[capacity];
+		}
+	}
+
+	@Override
+	public void rebuild () {
+		int n = store.size ();
+		ensureCapacity (n);
+
+		//Particles added since the last rebuild go to the end and are sorted in below
+		int added = n - sortedSize;
+		for (int i = sortedSize; i < n; i++) {
+			order[i] = i;
+		}
+
+		maxWidth = 0;
+		for (int k = 0; k < n; k++) {
+			int id = order[k];
+			store.getQuery (id, scratchQuery);
+			minX[k] = scratchQuery.x;
+			maxX[k] = scratchQuery.x + scratchQuery.w;
+			minY[k] = scratchQuery.y;
+			maxY[k] = scratchQuery.y + scratchQuery.h;
+
+			if (scratchQuery.w > maxWidth) {
+				maxWidth = scratchQuery.w;
+			}
+		}
+
+		if (added > n / 2) {
+			//Mostly unsorted (first build), insertion sort would be quadratic
+			fullSort (n);
+		}
+		else {
+			insertionSort (n);
+		}
+
+		sortedSize = n;
+		dirty = false;
+	}
+
+	private void insertionSort (int n) {
+		for (int k = 1; k < n; k++) {
+			float key = minX[k];
+			if (minX[k - 1] <= key) {
+				continue;
+			}
+
+			int id = order[k];
+			float kMaxX = maxX[k], kMinY = minY[k], kMaxY = maxY[k];
+			int j = k - 1;
+			while (j >= 0 && minX[j] > key) {
+				order[j + 1] = order[j];
+				minX[j + 1] = minX[j];
+				maxX[j + 1] = maxX[j];
+				minY[j + 1] = minY[j];
+				maxY[j + 1] = maxY[j];
+				j--;
+			}
+			order[j + 1] = id;
+			minX[j + 1] = key;
+			maxX[j + 1] = kMaxX;
+			minY[j + 1] = kMinY;
+			maxY[j + 1] = kMaxY;
+		}
+	}
+
+	private void fullSort (int n) {
+		//Pack (sortable minX bits, slot) into a long so a primitive sort does the work
+		for (int k = 0; k < n; k++) {
+			int bits = Float.floatToIntBits (minX[k]);
+			bits ^= (bits >> 31) & 0x7fffffff;
+			packed[k] = ((long) bits << 32) | k;
+		}
+		LongSort.sort (packed, 0, n);
+
+		for (int k = 0; k < n; k++) {
+			scratchOrder[k] = order[(int) packed[k]];
+		}
+		System.arraycopy (scratchOrder, 0, order, 0, n);
+		gather (minX, n);
+		gather (maxX, n);
+		gather (minY, n);
+		gather (maxY, n);
+	}
+
+	/*
+	 * Puts a column into the order of the sorted packed slots
+	 */
+	private void gather (float[] column, int n) {
+		for (int k = 0; k < n; k++) {
+			scratch[k] = column[(int) packed[k]];
+		}
+		System.arraycopy (scratch, 0, column, 0, n);
+	}
+
+	/*
+	 * First sorted slot with minX greater than value
+	 */
+	private int upperBound (float value) {
+		int lo = 0, hi = sortedSize;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (minX[mid] <= value) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	@Override
+	public void query (QuadTree.QuadTreeQuery query, IntList out) {
+		if (dirty) {
+			rebuild ();
+		}
+
+		float qMinX = query.x, qMaxX = query.x + query.w;
+		float qMinY = query.y, qMaxY = query.y + query.h;
+
+		//Every box that can reach qMinX starts no earlier than qMinX - maxWidth
+		float lowest = qMinX - maxWidth;
+		for (int k = upperBound (qMaxX) - 1; k >= 0 && minX[k] >= lowest; k--) {
+			if (maxX[k] >= qMinX && minY[k] <= qMaxY && maxY[k] >= qMinY) {
+				out.add (order[k]);
+			}
+		}
+	}
+
+	@Override
+	public void findPairs (IntList pairs) {
+		if (dirty) {
+			rebuild ();
+		}
+
+		for (int k = 0; k < sortedSize; k++) {
+			float kMaxX = maxX[k], kMinY = minY[k], kMaxY = maxY[k];
+			int a = order[k];
+
+			for (int j = k + 1; j < sortedSize && minX[j] <= kMaxX; j++) {
+				if (minY[j] <= kMaxY && maxY[j] >= kMinY) {
+					int b = order[j];
+					pairs.add (a < b ? a : b);
+					pairs.add (a < b ? b : a);
+				}
+			}
+		}
+	}
+}
@@ -1,13 +1,28 @@
 package particlecollisionstest;
 
-import java.util.Random;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
 import javax.swing.*;
 
 public class TestFrame {
 	private JFrame frame;
 	private CanvasPanel canvas;
+	private File checkpointFile;
+	private SeedableRandom random;
 	
 	public TestFrame () {
+		this (null, System.nanoTime ());
+	}
+	
+	/*
+	 * Starts from the checkpoint when it exists, and saves to it when the window closes
+	 * Otherwise the scene comes from seed, the same seed always gives the same run.
+	 */
+	public TestFrame (File checkpointFile, long seed) {
+		this.checkpointFile = checkpointFile;
+		this.random = new SeedableRandom (seed);
 		int width = 1920;
 		int height = 1200;
 		frame = new JFrame ("Collision");
@@ -19,32 +34,52 @@ public class TestFrame {
 		frame.add (canvas);
 		frame.pack ();
 		
-        /*canvas.addParticle (new Particle (90, 150, 1, 0, 10));
-		canvas.addParticle (new Particle (20, 150, 2, 0, 20));
-		canvas.addParticle (new Particle (200, 150, -2, 0, 40));
-		canvas.addParticle (new Particle (380, 150, 4, 0, 20));
-		canvas.addParticle (new Particle (20, 20, 5, 1, 20));*/
+        /*canvas.addParticle (90, 150, 1, 0, 10);
+		canvas.addParticle (20, 150, 2, 0, 20);
+		canvas.addParticle (200, 150, -2, 0, 40);
+		canvas.addParticle (380, 150, 4, 0, 20);
+		canvas.addParticle (20, 20, 5, 1, 20);*/
 		
-        Random rand = new Random ();
-        for(int i = 0; i < 1000; i++){
-			canvas.addParticle (new Particle (width * haltonSequence (i, 2), height * haltonSequence (i, 3), rand.nextInt (5) - 2, rand.nextInt (5) - 2, rand.nextFloat () * 5));
+		if (!restore ()) {
+			System.out.println ("Seed: " + seed);
+			SceneGenerator.populateHalton (canvas.getEngine (), 1000, random);
 		}
+		frame.addWindowListener (new WindowAdapter () {
+			@Override
+			public void windowClosing (WindowEvent e) {
+				canvas.stopSimulation ();
+				save ();
+			}
+		});
+		//Turned on from JConsole/VisualVM
+		canvas.getEngine ().getMetrics ().register ("TestFrame");
 
 		canvas.startSimulation ();
 	}
 	
-	private float haltonSequence (int index, int base) {
-		float result = 0;
-		float f = 1f / base;
-		int i = index;
-		
-		while (i > 0) {
-			result += f * (i % base);
-			i = (int) Math.floor ((float) i / base);
-			f = f / base;
+	private boolean restore () {
+		if (checkpointFile == null || !checkpointFile.exists ()) {
+			return false;
+		}
+		try {
+			Checkpoint.read (checkpointFile).restore (canvas.getEngine (), random);
+			return true;
+		}
+		catch (IOException ex) {
+			System.out.println (ex.getMessage ());
+			return false;
+		}
+	}
+	
+	private void save () {
+		if (checkpointFile == null) {
+			return;
+		}
+		try {
+			Checkpoint.save (canvas.getEngine (), random, checkpointFile);
+		}
+		catch (IOException ex) {
+			System.out.println (ex.getMessage ());
 		}
-		
-		return result;
 	}
 }
-
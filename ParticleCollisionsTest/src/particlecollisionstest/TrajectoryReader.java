@@ -0,0 +1,276 @@
+package particlecollisionstest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * Random access to the frames of a file written by TrajectoryWriter (see there for the layout)
+ * The index is read once, a frame is found by a binary search over the chunks and decoded from the
+ * start of its chunk. The last inflated chunk is kept, so reading frames in order inflates every
+ * chunk once.
+ */
+public class TrajectoryReader implements AutoCloseable {
+
+	private RandomAccessFile input;
+	private FileChannel channel;
+	private float width;
+	private float height;
+	private float quantum;
+	private long[] chunkOffset;
+	private long[] chunkFirstStep;
+	private int[] chunkFirstFrame;
+	private int[] chunkFrames;
+	private int frameCount;
+	private Inflater inflater;
+	private byte[] compressed;
+	private byte[] raw;
+	//The inflated chunk and how far into it has been decoded
+	private int loadedChunk;
+	private int decodedFrame;
+	private int position;
+	private int[] currentX;
+	private int[] currentY;
+	private int currentSize;
+	private long currentStep;
+
+	public TrajectoryReader (File file) throws IOException {
+		input = new RandomAccessFile (file, "r");
+		channel = input.getChannel ();
+		try {
+			readHeader (file);
+			readIndex (file);
+		}
+		catch (IOException ex) {
+			close ();
+			throw ex;
+		}
+		inflater = new Inflater ();
+		compressed = new byte[0];
+		raw = new byte[0];
+		currentX = new int[0];
+		currentY = new int[0];
+		loadedChunk = -1;
+	}
+
+	private void readHeader (File file) throws IOException {
+		ByteBuffer header = read (0, TrajectoryWriter.HEADER_BYTES);
+		if (header.getInt () != TrajectoryWriter.MAGIC) {
+			throw new IOException ("Not a trajectory: " + file);
+		}
+		int version = header.getInt ();
+		if (version != TrajectoryWriter.VERSION) {
+			throw new IOException ("Unsupported trajectory version " + version + ": " + file);
+		}
+		width = header.getFloat ();
+		height = header.getFloat ();
+		quantum = header.getFloat ();
+	}
+
+	private void readIndex (File file) throws IOException {
+		long size = channel.size ();
+		ByteBuffer trailer = read (size - 12, 12);
+		long indexOffset = trailer.getLong ();
+		if (trailer.getInt () != TrajectoryWriter.MAGIC || indexOffset < TrajectoryWriter.HEADER_BYTES || indexOffset > size - 16) {
+			throw new IOException ("Trajectory has no index, the writer was not closed: " + file);
+		}
+
+		int chunks = read (indexOffset, 4).getInt ();
+		if (chunks < 0 || indexOffset + 4 + (long) chunks * TrajectoryWriter.INDEX_ENTRY_BYTES != size - 12) {
+			throw new IOException ("Corrupt trajectory index: " + file);
+		}
+		chunkOffset = new long[chunks];
+		chunkFirstStep = new long[chunks];
+		chunkFirstFrame = new int[chunks];
+		chunkFrames = new int[chunks];
+
+		ByteBuffer index = read (indexOffset + 4, chunks * TrajectoryWriter.INDEX_ENTRY_BYTES);
+		for (int c = 0; c < chunks; c++) {
+			chunkOffset[c] = index.getLong ();
+			chunkFirstStep[c] = index.getLong ();
+			chunkFirstFrame[c] = index.getInt ();
+			chunkFrames[c] = index.getInt ();
+		}
+		frameCount = chunks == 0 ? 0 : chunkFirstFrame[chunks - 1] + chunkFrames[chunks - 1];
+	}
+
+	private ByteBuffer read (long offset, int length) throws IOException {
+		if (offset < 0 || offset + length > channel.size ()) {
+			throw new IOException ("Truncated trajectory");
+		}
+		ByteBuffer buffer = ByteBuffer.allocate (length).order (ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining ()) {
+			if (channel.read (buffer, offset + buffer.position ()) < 0) {
+				throw new IOException ("Truncated trajectory");
+			}
+		}
+		buffer.flip ();
+		return buffer;
+	}
+
+	public float getWidth () {
+		return width;
+	}
+
+	public float getHeight () {
+		return height;
+	}
+
+	/*
+	 * Spacing of the stored positions, each is within half of it of the simulated one
+	 */
+	public float getQuantum () {
+		return quantum;
+	}
+
+	public int getFrameCount () {
+		return frameCount;
+	}
+
+	/*
+	 * Decodes frame number frame (0 is the first recorded) into out
+	 */
+	public Frame readFrame (int frame, Frame out) throws IOException {
+		if (frame < 0 || frame >= frameCount) {
+			throw new IndexOutOfBoundsException ("Frame " + frame + " of " + frameCount);
+		}
+
+		int chunk = findChunk (frame);
+		if (chunk != loadedChunk || frame < decodedFrame - 1) {
+			loadChunk (chunk);
+		}
+		while (decodedFrame <= frame) {
+			decodeNext ();
+		}
+
+		if (out == null) {
+			out = new Frame ();
+		}
+		out.set (currentX, currentY, currentSize, quantum, currentStep);
+		return out;
+	}
+
+	private int findChunk (int frame) {
+		int lo = 0, hi = chunkFirstFrame.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (chunkFirstFrame[mid] <= frame) {
+				lo = mid;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	private void loadChunk (int chunk) throws IOException {
+		ByteBuffer lengths = read (chunkOffset[chunk], 8);
+		int rawLength = lengths.getInt (), compressedLength = lengths.getInt ();
+		if (compressed.length < compressedLength) {
+			compressed = new byte[compressedLength];
+		}
+		if (raw.length < rawLength) {
+			raw = new byte[rawLength];
+		}
+		ByteBuffer source = ByteBuffer.wrap (compressed, 0, compressedLength);
+		while (source.hasRemaining ()) {
+			if (channel.read (source, chunkOffset[chunk] + 8 + source.position ()) < 0) {
+				throw new IOException ("Truncated trajectory");
+			}
+		}
+
+		inflater.reset ();
+		inflater.setInput (compressed, 0, compressedLength);
+		try {
+			int length = 0;
+			while (length < rawLength && !inflater.finished ()) {
+				int inflated = inflater.inflate (raw, length, rawLength - length);
+				if (inflated == 0 && inflater.needsInput ()) {
+					break;
+				}
+				length += inflated;
+			}
+			if (length != rawLength) {
+				throw new IOException ("Corrupt trajectory chunk " + chunk);
+			}
+		}
+		catch (DataFormatException ex) {
+			throw new IOException ("Corrupt trajectory chunk " + chunk, ex);
+		}
+
+		loadedChunk = chunk;
+		decodedFrame = chunkFirstFrame[chunk];
+		position = 0;
+		currentSize = 0;
+	}
+
+	private void decodeNext () {
+		currentStep = chunkFirstStep[loadedChunk] + readVarLong ();
+		int n = (int) readVarLong ();
+		if (currentX.length < n) {
+			currentX = Arrays.copyOf (currentX, n);
+			currentY = Arrays.copyOf (currentY, n);
+		}
+		//Particles new since the previous frame start from 0
+		Arrays.fill (currentX, currentSize, Math.max (currentSize, n), 0);
+		Arrays.fill (currentY, currentSize, Math.max (currentSize, n), 0);
+
+		for (int i = 0; i < n; i++) {
+			currentX[i] += (int) TrajectoryWriter.unzigzag (readVarLong ());
+			currentY[i] += (int) TrajectoryWriter.unzigzag (readVarLong ());
+		}
+		currentSize = n;
+		decodedFrame++;
+	}
+
+	private long readVarLong () {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = raw[position++];
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	@Override
+	public void close () throws IOException {
+		if (inflater != null) {
+			inflater.end ();
+		}
+		channel.close ();
+		input.close ();
+	}
+
+	/*
+	 * Positions of one recorded step, within quantum / 2 of the simulated ones
+	 */
+	public static class Frame {
+		public float[] x = new float[0];
+		public float[] y = new float[0];
+		public int size;
+		public long step;
+
+		void set (int[] qx, int[] qy, int n, float quantum, long step) {
+			if (x.length < n) {
+				x = new float[n];
+				y = new float[n];
+			}
+			for (int i = 0; i < n; i++) {
+				x[i] = qx[i] * quantum;
+				y[i] = qy[i] * quantum;
+			}
+			size = n;
+			this.step = step;
+		}
+	}
+}
@@ -0,0 +1,430 @@
+package particlecollisionstest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+/*
+ * Records particle positions every interval steps to a compressed, seekable file (see TrajectoryReader)
+ * The simulation thread only copies positions into a free slot of a bounded ring of frames, a background
+ * thread quantizes, delta encodes, deflates and appends them. The simulation thread only ever waits
+ * when every slot is still queued for the disk; how often and how long that happens is counted.
+ *
+ * Positions are quantized to multiples of quantum. Frames are grouped in chunks of framesPerChunk, the
+ * first frame of a chunk is stored as is and every other one as the zigzag varint difference to the
+ * previous frame, then the chunk is deflated on its own. An index of chunks at the end of the file
+ * lets a reader jump to any frame by inflating one chunk.
+ *
+ * File layout, little endian:
+ *   header  int magic "PTRJ", int version, float width, float height, float quantum, int framesPerChunk
+ *   chunks  int raw length, int compressed length, compressed bytes
+ *   index   int chunk count, then per chunk long offset, long first step, int first frame, int frames
+ *   trailer long index offset, int magic
+ * Particle ids are the store ids, which are not stable while the simulation reorders its store.
+ */
+public class TrajectoryWriter {
+
+	public static final int MAGIC = 0x4a525450;
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 24;
+	public static final int INDEX_ENTRY_BYTES = 24;
+
+	private int interval;
+	private float quantum;
+	private int framesPerChunk;
+	private FileChannel channel;
+	private RandomAccessFile output;
+	private Thread encoder;
+	//Ring of frames, [tail, tail + queued) are waiting for the encoder
+	private Slot[] ring;
+	private int head;
+	private int tail;
+	private volatile int queued;
+	private boolean closed;
+	private ReentrantLock lock;
+	private Condition notFull;
+	private Condition notEmpty;
+	private volatile IOException failure;
+	//Statistics
+	private volatile long framesSubmitted;
+	private volatile long framesWritten;
+	private volatile long stalls;
+	private volatile long stallNanos;
+	private volatile int maxQueued;
+	private volatile long rawBytes;
+	private volatile long compressedBytes;
+	//Encoder state, only touched by the encoder thread
+	private ByteSink chunk;
+	private int chunkFrames;
+	private long chunkFirstStep;
+	private int[] previousX;
+	private int[] previousY;
+	private int previousSize;
+	private Deflater deflater;
+	private byte[] compressed;
+	private long offset;
+	private int frameCount;
+	private ByteSink index;
+	private int chunkCount;
+
+	public TrajectoryWriter (File file, float width, float height, int interval, int bufferFrames) throws IOException {
+		this (file, width, height, interval, bufferFrames, 1 / 64f, 16);
+	}
+
+	public TrajectoryWriter (File file, float width, float height, int interval, int bufferFrames, float quantum, int framesPerChunk) throws IOException {
+		this.interval = Math.max (1, interval);
+		this.quantum = quantum;
+		this.framesPerChunk = Math.max (1, framesPerChunk);
+		this.ring = new Slot[Math.max (1, bufferFrames)];
+		for (int i = 0; i < ring.length; i++) {
+			ring[i] = new Slot ();
+		}
+		this.lock = new ReentrantLock ();
+		this.notFull = lock.newCondition ();
+		this.notEmpty = lock.newCondition ();
+
+		this.chunk = new ByteSink ();
+		this.index = new ByteSink ();
+		this.previousX = new int[0];
+		this.previousY = new int[0];
+		this.deflater = new Deflater (Deflater.BEST_SPEED);
+		this.compressed = new byte[1024];
+
+		output = new RandomAccessFile (file, "rw");
+		output.setLength (0);
+		channel = output.getChannel ();
+		ByteBuffer header = ByteBuffer.allocate (HEADER_BYTES).order (ByteOrder.LITTLE_ENDIAN);
+		header.putInt (MAGIC).putInt (VERSION).putFloat (width).putFloat (height).putFloat (quantum).putInt (this.framesPerChunk);
+		header.flip ();
+		write (header);
+
+		encoder = new Thread (new Runnable () {
+			@Override
+			public void run () {
+				encodeLoop ();
+			}
+		}, "TrajectoryWriter");
+		encoder.setDaemon (true);
+		encoder.start ();
+	}
+
+	/*
+	 * Call after every step, records a frame every interval steps
+	 */
+	public void onStep (Engine engine) throws IOException {
+		if (engine.getStepCount () % interval == 0) {
+			submit (engine.getStore (), engine.getStepCount ());
+		}
+	}
+
+	/*
+	 * Copies the positions into the ring, waits only when the ring is full
+	 */
+	public void submit (ParticleStore store, long step) throws IOException {
+		checkFailure ();
+		lock.lock ();
+		try {
+			if (queued == ring.length) {
+				long start = System.nanoTime ();
+				stalls++;
+				while (queued == ring.length && failure == null) {
+					notFull.awaitUninterruptibly ();
+				}
+				stallNanos += System.nanoTime () - start;
+			}
+		}
+		finally {
+			lock.unlock ();
+		}
+		checkFailure ();
+
+		//The head slot is not visible to the encoder until it is queued
+		ring[head].copy (store, step);
+
+		lock.lock ();
+		try {
+			head = (head + 1) % ring.length;
+			queued++;
+			maxQueued = Math.max (maxQueued, queued);
+			framesSubmitted++;
+			notEmpty.signal ();
+		}
+		finally {
+			lock.unlock ();
+		}
+	}
+
+	/*
+	 * Writes everything still queued, the last chunk and the index
+	 */
+	public void close () throws IOException {
+		lock.lock ();
+		try {
+			closed = true;
+			notEmpty.signal ();
+		}
+		finally {
+			lock.unlock ();
+		}
+
+		try {
+			encoder.join ();
+		}
+		catch (InterruptedException ex) {
+			throw new IOException ("Interrupted while closing", ex);
+		}
+
+		try {
+			checkFailure ();
+			flushChunk ();
+
+			ByteBuffer count = ByteBuffer.allocate (4).order (ByteOrder.LITTLE_ENDIAN);
+			count.putInt (chunkCount).flip ();
+			long indexOffset = offset;
+			write (count);
+			write (ByteBuffer.wrap (index.data, 0, index.size));
+
+			ByteBuffer trailer = ByteBuffer.allocate (12).order (ByteOrder.LITTLE_ENDIAN);
+			trailer.putLong (indexOffset).putInt (MAGIC).flip ();
+			write (trailer);
+		}
+		finally {
+			deflater.end ();
+			channel.close ();
+			output.close ();
+		}
+	}
+
+	public long getFramesSubmitted () {
+		return framesSubmitted;
+	}
+
+	public long getFramesWritten () {
+		return framesWritten;
+	}
+
+	/*
+	 * Times the simulation thread found the ring full and had to wait, and for how long in total
+	 */
+	public long getStalls () {
+		return stalls;
+	}
+
+	public long getStallNanos () {
+		return stallNanos;
+	}
+
+	public int getQueued () {
+		return queued;
+	}
+
+	public int getMaxQueued () {
+		return maxQueued;
+	}
+
+	public int getCapacity () {
+		return ring.length;
+	}
+
+	/*
+	 * Encoded bytes before and after deflate
+	 */
+	public long getRawBytes () {
+		return rawBytes;
+	}
+
+	public long getCompressedBytes () {
+		return compressedBytes;
+	}
+
+	private void checkFailure () throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void encodeLoop () {
+		while (true) {
+			Slot slot;
+			lock.lock ();
+			try {
+				while (queued == 0 && !closed) {
+					notEmpty.awaitUninterruptibly ();
+				}
+				if (queued == 0) {
+					return;
+				}
+				slot = ring[tail];
+			}
+			finally {
+				lock.unlock ();
+			}
+
+			try {
+				encode (slot);
+			}
+			catch (IOException ex) {
+				failure = ex;
+			}
+
+			lock.lock ();
+			try {
+				tail = (tail + 1) % ring.length;
+				queued--;
+				notFull.signal ();
+				if (failure != null) {
+					//Nothing more gets written, release a waiting simulation thread
+					notFull.signalAll ();
+					return;
+				}
+			}
+			finally {
+				lock.unlock ();
+			}
+		}
+	}
+
+	private void encode (Slot slot) throws IOException {
+		int n = slot.size;
+		if (chunkFrames == 0) {
+			chunkFirstStep = slot.step;
+			previousSize = 0;
+		}
+		if (previousX.length < n) {
+			previousX = Arrays.copyOf (previousX, Math.max (n, previousX.length * 2));
+			previousY = Arrays.copyOf (previousY, previousX.length);
+		}
+		//Particles new since the previous frame start from 0
+		Arrays.fill (previousX, previousSize, Math.max (previousSize, n), 0);
+		Arrays.fill (previousY, previousSize, Math.max (previousSize, n), 0);
+
+		chunk.writeVarLong (slot.step - chunkFirstStep);
+		chunk.writeVarLong (n);
+		float scale = 1 / quantum;
+		for (int i = 0; i < n; i++) {
+			int qx = Math.round (slot.x[i] * scale), qy = Math.round (slot.y[i] * scale);
+			chunk.writeVarLong (zigzag (qx - previousX[i]));
+			chunk.writeVarLong (zigzag (qy - previousY[i]));
+			previousX[i] = qx;
+			previousY[i] = qy;
+		}
+		previousSize = n;
+
+		chunkFrames++;
+		framesWritten++;
+		if (chunkFrames == framesPerChunk) {
+			flushChunk ();
+		}
+	}
+
+	private void flushChunk () throws IOException {
+		if (chunkFrames == 0) {
+			return;
+		}
+
+		deflater.reset ();
+		deflater.setInput (chunk.data, 0, chunk.size);
+		deflater.finish ();
+		int length = 0;
+		while (!deflater.finished ()) {
+			if (length == compressed.length) {
+				compressed = Arrays.copyOf (compressed, compressed.length * 2);
+			}
+			length += deflater.deflate (compressed, length, compressed.length - length);
+		}
+
+		index.writeLong (offset);
+		index.writeLong (chunkFirstStep);
+		index.writeInt (frameCount);
+		index.writeInt (chunkFrames);
+
+		ByteBuffer lengths = ByteBuffer.allocate (8).order (ByteOrder.LITTLE_ENDIAN);
+		lengths.putInt (chunk.size).putInt (length).flip ();
+		write (lengths);
+		write (ByteBuffer.wrap (compressed, 0, length));
+
+		rawBytes += chunk.size;
+		compressedBytes += length;
+		frameCount += chunkFrames;
+		chunkCount++;
+		chunkFrames = 0;
+		chunk.size = 0;
+	}
+
+	private void write (ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining ()) {
+			offset += channel.write (buffer);
+		}
+	}
+
+	static long zigzag (long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unzigzag (long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static class Slot {
+		float[] x = new float[0];
+		float[] y = new float[0];
+		int size;
+		long step;
+
+		void copy (ParticleStore store, long step) {
+			int n = store.size ();
+			if (x.length < n) {
+				x = new float[store.capacity ()];
+				y = new float[store.capacity ()];
+			}
+			System.arraycopy (store.x, 0, x, 0, n);
+			System.arraycopy (store.y, 0, y, 0, n);
+			size = n;
+			this.step = step;
+		}
+	}
+
+	/*
+	 * Growable little endian byte buffer with unsigned LEB128 varints
+	 */
+	static class ByteSink {
+		byte[] data = new byte[4096];
+		int size;
+
+		void writeVarLong (long value) {
+			ensure (10);
+			while ((value & ~0x7fL) != 0) {
+				data[size++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			data[size++] = (byte) value;
+		}
+
+		void writeInt (int value) {
+			ensure (4);
+			for (int i = 0; i < 4; i++) {
+				data[size++] = (byte) (value >>> (8 * i));
+			}
+		}
+
+		void writeLong (long value) {
+			ensure (8);
+			for (int i = 0; i < 8; i++) {
+				data[size++] = (byte) (value >>> (8 * i));
+			}
+		}
+
+		private void ensure (int bytes) {
+			if (size + bytes > data.length) {
+				data = Arrays.copyOf (data, Math.max (size + bytes, data.length * 2));
+			}
+		}
+	}
+}
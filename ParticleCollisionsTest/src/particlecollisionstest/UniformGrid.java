@@ -0,0 +1,289 @@
+package particlecollisionstest;
+
+import java.util.Arrays;
+
+/*
+ * Uniform grid broadphase rebuilt with a counting sort every step
+ * Every swept box (see ParticleStore.getQuery) is binned into each square cell of ~2 * rmax it overlaps,
+ * cell contents are contiguous runs of cellObjects described by cellStart/cellCount so no per-object
+ * links exist. A query only visits the cells under its own box, however fast the fastest particle is.
+ * Boxes covering more than LARGE_CELLS cells are kept in a separate list every query tests instead.
+ *
+ * An id found in several cells is reported once: only from the cell holding the lowest corner of the
+ * overlap of the two boxes. That needs no shared state, so queries may run on several threads at once.
+ * Any particle whose box changed forces a rebuild before the next query.
+ */
+public class UniformGrid implements Broadphase {
+
+	private static final int LARGE_CELLS = 16;
+
+	private ParticleStore store;
+	private float w;
+	private float h;
+	private float cellSize;
+	private float invCellSize;
+	private float rMax;
+	private int cols;
+	private int rows;
+	private int[] cellStart;
+	private int[] cellCount;
+	private int[] cellObjects;
+	//Binned boxes by id
+	private float[] boxMinX;
+	private float[] boxMinY;
+	private float[] boxMaxX;
+	private float[] boxMaxY;
+	private boolean[] large;
+	private IntList largeIds;
+	private int binnedSize;
+	private boolean dirty;
+	private QuadTree.QuadTreeQuery scratchQuery;
+
+	public UniformGrid (ParticleStore store, float w, float h) {
+		this.store = store;
+		this.w = w;
+		this.h = h;
+		this.cellStart = new int[1];
+		this.cellCount = new int[1];
+		this.cellObjects = new int[store.capacity ()];
+		this.boxMinX = new float[store.capacity ()];
+		this.boxMinY = new float[store.capacity ()];
+		this.boxMaxX = new float[store.capacity ()];
+		this.boxMaxY = new float[store.capacity ()];
+		this.large = new boolean[store.capacity ()];
+		this.largeIds = new IntList ();
+		this.dirty = true;
+		this.scratchQuery = new QuadTree.QuadTreeQuery ();
+	}
+
+	public float getCellSize () {
+		return cellSize;
+	}
+
+	public int getCols () {
+		return cols;
+	}
+
+	public int getRows () {
+		return rows;
+	}
+
+	@Override
+	public void insert (int id) {
+		dirty = true;
+	}
+
+	/*
+	 * Everything is binned again from the permuted store before the next query
+	 */
+	@Override
+	public void reorder (int[] newIds) {
+		reload ();
+	}
+
+	@Override
+	public void reload () {
+		binnedSize = 0;
+		dirty = true;
+	}
+
+	@Override
+	public void update (int id) {
+		if (dirty || id >= binnedSize) {
+			dirty = true;
+			return;
+		}
+
+		store.getQuery (id, scratchQuery);
+		if (scratchQuery.x != boxMinX[id] || scratchQuery.y != boxMinY[id] || scratchQuery.x + scratchQuery.w != boxMaxX[id] || scratchQuery.y + scratchQuery.h != boxMaxY[id]) {
+			dirty = true;
+		}
+	}
+
+	@Override
+	public void rebuild () {
+		int n = store.size ();
+		float[] r = store.r;
+
+		//Cell size follows the largest radius
+		float newRMax = 0;
+		for (int i = 0; i < n; i++) {
+			if (r[i] > newRMax) {
+				newRMax = r[i];
+			}
+		}
+		resize (newRMax, n);
+
+		//Count
+		Arrays.fill (cellCount, 0, cols * rows, 0);
+		largeIds.clear ();
+		int entries = 0;
+		for (int i = 0; i < n; i++) {
+			store.getQuery (i, scratchQuery);
+			boxMinX[i] = scratchQuery.x;
+			boxMinY[i] = scratchQuery.y;
+			boxMaxX[i] = scratchQuery.x + scratchQuery.w;
+			boxMaxY[i] = scratchQuery.y + scratchQuery.h;
+
+			int minCol = col (boxMinX[i]), maxCol = col (boxMaxX[i]), minRow = row (boxMinY[i]), maxRow = row (boxMaxY[i]);
+			large[i] = (maxCol - minCol + 1) * (maxRow - minRow + 1) > LARGE_CELLS;
+			if (large[i]) {
+				largeIds.add (i);
+				continue;
+			}
+			for (int rowIndex = minRow; rowIndex <= maxRow; rowIndex++) {
+				for (int c = rowIndex * cols + minCol; c <= rowIndex * cols + maxCol; c++) {
+					cellCount[c]++;
+				}
+			}
+			entries += (maxCol - minCol + 1) * (maxRow - minRow + 1);
+		}
+		if (entries > cellObjects.length) {
+			cellObjects = new int[Math.max (entries, cellObjects.length * 2)];
+		}
+
+		//Prefix sum
+		int start = 0;
+		for (int c = 0; c < cols * rows; c++) {
+			cellStart[c] = start;
+			start += cellCount[c];
+		}
+
+		//Scatter, cellCount is reused as the write cursor and ends up as the count again
+		Arrays.fill (cellCount, 0, cols * rows, 0);
+		for (int i = 0; i < n; i++) {
+			if (large[i]) {
+				continue;
+			}
+			int minCol = col (boxMinX[i]), maxCol = col (boxMaxX[i]), minRow = row (boxMinY[i]), maxRow = row (boxMaxY[i]);
+			for (int rowIndex = minRow; rowIndex <= maxRow; rowIndex++) {
+				for (int c = rowIndex * cols + minCol; c <= rowIndex * cols + maxCol; c++) {
+					cellObjects[cellStart[c] + cellCount[c]++] = i;
+				}
+			}
+		}
+
+		binnedSize = n;
+		dirty = false;
+	}
+
+	private void resize (float newRMax, int n) {
+		if (n > boxMinX.length) {
+			int capacity = Math.max (n, boxMinX.length * 2);
+			boxMinX = new float[capacity];
+			boxMinY = new float[capacity];
+			boxMaxX = new float[capacity];
+			boxMaxY = new float[capacity];
+			large = new boolean[capacity];
+		}
+
+		if (newRMax != rMax || cols == 0) {
+			rMax = newRMax;
+			cellSize = Math.max (2 * rMax, 1f);
+			invCellSize = 1f / cellSize;
+			cols = Math.max (1, (int) Math.ceil (w * invCellSize));
+			rows = Math.max (1, (int) Math.ceil (h * invCellSize));
+
+			if (cols * rows > cellStart.length) {
+				cellStart = new int[cols * rows];
+				cellCount = new int[cols * rows];
+			}
+		}
+	}
+
+	private int col (float x) {
+		int c = (int) (x * invCellSize);
+		return c < 0 ? 0 : (c >= cols ? cols - 1 : c);
+	}
+
+	private int row (float y) {
+		int c = (int) (y * invCellSize);
+		return c < 0 ? 0 : (c >= rows ? rows - 1 : c);
+	}
+
+	/*
+	 * Whether the box of id overlaps [minX, maxX] x [minY, maxY] with the lowest corner of the overlap in cell (c, rowIndex)
+	 */
+	private boolean reportedIn (int id, float minX, float minY, float maxX, float maxY, int c, int rowIndex) {
+		float overlapX = Math.max (boxMinX[id], minX), overlapY = Math.max (boxMinY[id], minY);
+		return overlapX <= Math.min (boxMaxX[id], maxX) && overlapY <= Math.min (boxMaxY[id], maxY) && col (overlapX) == c && row (overlapY) == rowIndex;
+	}
+
+	private boolean overlaps (int a, int b) {
+		return boxMinX[a] <= boxMaxX[b] && boxMinX[b] <= boxMaxX[a] && boxMinY[a] <= boxMaxY[b] && boxMinY[b] <= boxMaxY[a];
+	}
+
+	/*
+	 * Every id whose swept box overlaps the query, each once
+	 */
+	@Override
+	public void query (QuadTree.QuadTreeQuery query, IntList out) {
+		if (dirty) {
+			rebuild ();
+		}
+
+		float qMinX = query.x, qMaxX = query.x + query.w;
+		float qMinY = query.y, qMaxY = query.y + query.h;
+		int minCol = col (qMinX), maxCol = col (qMaxX);
+		int minRow = row (qMinY), maxRow = row (qMaxY);
+
+		for (int rowIndex = minRow; rowIndex <= maxRow; rowIndex++) {
+			for (int c = minCol; c <= maxCol; c++) {
+				int cell = rowIndex * cols + c;
+				int end = cellStart[cell] + cellCount[cell];
+				for (int k = cellStart[cell]; k < end; k++) {
+					int id = cellObjects[k];
+					if (reportedIn (id, qMinX, qMinY, qMaxX, qMaxY, c, rowIndex)) {
+						out.add (id);
+					}
+				}
+			}
+		}
+
+		for (int k = 0; k < largeIds.size (); k++) {
+			int id = largeIds.get (k);
+			if (boxMinX[id] <= qMaxX && qMinX <= boxMaxX[id] && boxMinY[id] <= qMaxY && qMinY <= boxMaxY[id]) {
+				out.add (id);
+			}
+		}
+	}
+
+	/*
+	 * Pairs within every cell, each from the cell holding the lowest corner of its overlap, then the
+	 * large boxes against every other box
+	 */
+	@Override
+	public void findPairs (IntList pairs) {
+		if (dirty) {
+			rebuild ();
+		}
+
+		for (int rowIndex = 0; rowIndex < rows; rowIndex++) {
+			for (int c = 0; c < cols; c++) {
+				int cell = rowIndex * cols + c;
+				int end = cellStart[cell] + cellCount[cell];
+				for (int k = cellStart[cell]; k < end; k++) {
+					int a = cellObjects[k];
+					for (int j = k + 1; j < end; j++) {
+						int b = cellObjects[j];
+						if (reportedIn (a, boxMinX[b], boxMinY[b], boxMaxX[b], boxMaxY[b], c, rowIndex)) {
+							pairs.add (a < b ? a : b);
+							pairs.add (a < b ? b : a);
+						}
+					}
+				}
+			}
+		}
+
+		for (int k = 0; k < largeIds.size (); k++) {
+			int a = largeIds.get (k);
+			for (int b = 0; b < binnedSize; b++) {
+				//Large against large once, from the lower id
+				if (b != a && (!large[b] || b > a) && overlaps (a, b)) {
+					pairs.add (a < b ? a : b);
+					pairs.add (a < b ? b : a);
+				}
+			}
+		}
+	}
+}